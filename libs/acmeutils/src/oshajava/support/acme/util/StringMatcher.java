@@ -116,6 +116,10 @@ public class StringMatcher {
 		entries.add(entries.size() - defaultLen, new Entry(s));
 	}
 	
+	public boolean isEmpty() {
+		return entries.isEmpty();
+	}
+
 	@Override
 	public String toString() {
 		StringBuffer res = new StringBuffer("[");
@@ -0,0 +1,6 @@
+export PATH=$PATH:/root/project/build/bin
+			export OSHAJAVA_JAR=/root/project/build/oshajava.jar
+			export OSHAJAVA_ANNOTATION_CLASSPATH=$OSHAJAVA_JAR
+			export OSHAJAVA_CLASSPATH=$OSHAJAVA_JAR
+			export OSHAJAVA_PROCESSOR_CLASS=oshajava.spec.SpecProcessor
+		
\ No newline at end of file
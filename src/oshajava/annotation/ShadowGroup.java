@@ -30,11 +30,23 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 */
 
-package oshajava.runtime;
 
-public class ObjectWithState {
-	
-	public State __osha_state;
-	public LockState __osha_lock_state;
+package oshajava.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Target;
 
+/**
+ * Under object-granularity tracking, track the annotated instance field
+ * with the other fields of its class in the same shadow group instead of
+ * with the rest of the object.
+ */
+@Target({ElementType.FIELD})
+public @interface ShadowGroup {
+
+	/**
+	 * The name of the group, unique within the declaring class.
+	 */
+	String value();
+	
 }
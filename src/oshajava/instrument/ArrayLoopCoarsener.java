@@ -0,0 +1,914 @@
+/*
+
+Copyright (c) 2010, Benjamin P. Wood and Adrian Sampson, University of Washington
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the University of Washington nor the names of its
+   contributors may be used to endorse or promote products derived from this
+   software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+*/
+
+
+package oshajava.instrument;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+
+import oshajava.support.acme.util.Assert;
+import oshajava.support.org.objectweb.asm.MethodVisitor;
+import oshajava.support.org.objectweb.asm.Opcodes;
+import oshajava.support.org.objectweb.asm.tree.AbstractInsnNode;
+import oshajava.support.org.objectweb.asm.tree.FieldInsnNode;
+import oshajava.support.org.objectweb.asm.tree.IincInsnNode;
+import oshajava.support.org.objectweb.asm.tree.InsnList;
+import oshajava.support.org.objectweb.asm.tree.InsnNode;
+import oshajava.support.org.objectweb.asm.tree.IntInsnNode;
+import oshajava.support.org.objectweb.asm.tree.JumpInsnNode;
+import oshajava.support.org.objectweb.asm.tree.LabelNode;
+import oshajava.support.org.objectweb.asm.tree.LdcInsnNode;
+import oshajava.support.org.objectweb.asm.tree.LookupSwitchInsnNode;
+import oshajava.support.org.objectweb.asm.tree.MethodInsnNode;
+import oshajava.support.org.objectweb.asm.tree.MethodNode;
+import oshajava.support.org.objectweb.asm.tree.TableSwitchInsnNode;
+import oshajava.support.org.objectweb.asm.tree.TryCatchBlockNode;
+import oshajava.support.org.objectweb.asm.tree.VarInsnNode;
+import oshajava.support.org.objectweb.asm.tree.analysis.Analyzer;
+import oshajava.support.org.objectweb.asm.tree.analysis.AnalyzerException;
+import oshajava.support.org.objectweb.asm.tree.analysis.BasicInterpreter;
+import oshajava.support.org.objectweb.asm.tree.analysis.BasicValue;
+import oshajava.support.org.objectweb.asm.tree.analysis.Frame;
+import oshajava.support.org.objectweb.asm.tree.analysis.Value;
+
+/**
+ * Coarsens the array checks of counted loops (-coarsenArrayLoops).
+ * 
+ * A loop in javac's form
+ * 
+ *   H: iload i; [bound]; if_icmpge X; [body]; iinc i 1; goto H; X:
+ * 
+ * whose body is straight-line code with no calls, monitor operations,
+ * possibly volatile field accesses, or stores to i (other than the one
+ * increment), and whose array accesses all index arrays in loop-invariant
+ * locals or fields of this at i plus an invariant offset or at an invariant
+ * index, gets one arrayRangeRead per distinct read before the loop and one
+ * arrayRangeWrite per distinct write when it exits. Its element accesses
+ * are left uninstrumented.
+ * 
+ * If the loop throws, a catch-all handler records the writes of the
+ * iterations so far and rethrows. A write is only coarsened if nothing
+ * between it and the increment can throw, so the handler knows whether
+ * the current iteration's write happened: it did exactly if i has been
+ * incremented. Other writes keep their element hooks.
+ * 
+ * The range hooks are inserted here as calls to placeholder methods that
+ * MethodInstrumentor completes with the current thread state arguments.
+ * Field reads inserted to compute the ranges are not instrumented, and a
+ * RedundantCheckAnalyzer does not count them as checks.
+ * 
+ * Every element the loop reads is checked. Reads of elements the loop has
+ * already written itself (a[i-1] after a[i] = ...) are left out of the
+ * range when the read and write index the same array expression at
+ * comparable offsets; otherwise the range check is conservative.
+ * 
+ * @author bpw
+ *
+ */
+public class ArrayLoopCoarsener extends MethodNode {
+	
+	private final String owner;
+	private final MethodVisitor next;
+	private final MethodInstrumentor mi;
+	
+	/**
+	 * Coarsened element accesses.
+	 */
+	private final HashSet<AbstractInsnNode> coarsened = new HashSet<AbstractInsnNode>();
+	
+	/**
+	 * Field reads inserted to compute ranges.
+	 */
+	private final HashSet<AbstractInsnNode> inserted = new HashSet<AbstractInsnNode>();
+	
+	public ArrayLoopCoarsener(final String owner, final MethodVisitor next, final MethodInstrumentor mi, final int access, 
+			final String name, final String desc, final String signature, final String[] exceptions) {
+		super(access, name, desc, signature, exceptions);
+		this.owner = owner;
+		this.next = next;
+		this.mi = mi;
+	}
+	
+	@Override
+	public void visitEnd() {
+		try {
+			final List<Loop> loops = findLoops();
+			for (final Loop loop : loops) {
+				loop.coarsen();
+			}
+			if (!loops.isEmpty()) {
+				// base, from, and Math.min's two arguments, one being computed.
+				maxStack = Math.max(maxStack, 5);
+			}
+		} catch (AnalyzerException e) {
+			Assert.warn("Could not analyze %s.%s%s for array loops: %s", owner, name, desc, e.getMessage());
+		}
+		final BitSet insns = new BitSet(), fields = new BitSet();
+		int arrayInsn = 0, fieldInsn = 0;
+		for (int i = 0; i < instructions.size(); i++) {
+			final AbstractInsnNode insn = instructions.get(i);
+			if (isArrayAccess(insn.getOpcode())) {
+				if (coarsened.contains(insn)) {
+					insns.set(arrayInsn);
+				}
+				arrayInsn++;
+			} else if (insn.getType() == AbstractInsnNode.FIELD_INSN) {
+				if (inserted.contains(insn)) {
+					fields.set(fieldInsn);
+				}
+				fieldInsn++;
+			}
+		}
+		mi.setCoarsenedArrayInsns(insns);
+		mi.setLoopRangeFieldInsns(fields);
+		accept(next);
+	}
+	
+	static boolean isArrayAccess(final int opcode) {
+		return opcode >= Opcodes.IALOAD && opcode <= Opcodes.SALOAD || opcode >= Opcodes.IASTORE && opcode <= Opcodes.SASTORE;
+	}
+	
+	private static boolean isArrayStore(final int opcode) {
+		return opcode >= Opcodes.IASTORE && opcode <= Opcodes.SASTORE;
+	}
+	
+	/**
+	 * Can this instruction in a loop body throw? Field accesses may fail
+	 * their checks.
+	 */
+	private static boolean mayThrow(final int opcode) {
+		switch (opcode) {
+		case Opcodes.IDIV:
+		case Opcodes.IREM:
+		case Opcodes.LDIV:
+		case Opcodes.LREM:
+		case Opcodes.ARRAYLENGTH:
+		case Opcodes.GETFIELD:
+		case Opcodes.PUTFIELD:
+		case Opcodes.GETSTATIC:
+		case Opcodes.PUTSTATIC:
+		case Opcodes.CHECKCAST:
+		case Opcodes.NEW:
+		case Opcodes.NEWARRAY:
+		case Opcodes.ANEWARRAY:
+		case Opcodes.MULTIANEWARRAY:
+			return true;
+		default:
+			return isArrayAccess(opcode);
+		}
+	}
+	
+	/* Loop recognition ***************************************************************/
+	
+	private List<Loop> findLoops() throws AnalyzerException {
+		final List<Loop> loops = new ArrayList<Loop>();
+		final AbstractInsnNode[] insns = instructions.toArray();
+		Frame[] frames = null;
+		for (int p = 0; p < insns.length; p++) {
+			if (insns[p].getOpcode() == Opcodes.GOTO) {
+				final int h = instructions.indexOf(((JumpInsnNode)insns[p]).label);
+				if (h < p) {
+					if (frames == null) {
+						frames = new Analyzer(new ExprInterpreter()).analyze(owner, this);
+					}
+					final Loop loop = loop(insns, frames, h, p);
+					if (loop != null) {
+						loops.add(loop);
+					}
+				}
+			}
+		}
+		return loops;
+	}
+	
+	/**
+	 * Recognize a coarsenable loop with head h and back edge p, or return null.
+	 */
+	private Loop loop(final AbstractInsnNode[] insns, final Frame[] frames, final int h, final int p) {
+		// Nothing outside the loop may jump into it, and no handlers may cover it.
+		for (int k = 0; k < insns.length; k++) {
+			if ((k < h || k > p) && jumpsInto(insns[k], h, p)) {
+				return null;
+			}
+		}
+		for (final Object o : tryCatchBlocks) {
+			final TryCatchBlockNode tcb = (TryCatchBlockNode)o;
+			if (instructions.indexOf(tcb.start) <= p && instructions.indexOf(tcb.end) > h 
+					|| inside(instructions.indexOf(tcb.handler), h, p)) {
+				return null;
+			}
+		}
+		
+		// The condition: pure code computing i and the bound.
+		int c = h + 1;
+		while (c < p && insns[c].getType() != AbstractInsnNode.JUMP_INSN) {
+			if (insns[c].getOpcode() >= 0 && !isPure(insns[c].getOpcode())) {
+				return null;
+			}
+			c++;
+		}
+		if (c >= p || insns[c].getOpcode() != Opcodes.IF_ICMPGE || frames[c] == null || frames[c].getStackSize() != 2) {
+			return null;
+		}
+		final JumpInsnNode cond = (JumpInsnNode)insns[c];
+		final int x = instructions.indexOf(cond.label);
+		if (x <= p) {
+			return null;
+		}
+		for (int k = p + 1; k < x; k++) {
+			if (insns[k].getOpcode() >= 0) {
+				return null;
+			}
+		}
+		final Expr index = expr(frames[c].getStack(0)), bound = expr(frames[c].getStack(1));
+		if (index == null || index.kind != Expr.LOCAL || index.op != Opcodes.ILOAD || bound == null) {
+			return null;
+		}
+		final Loop loop = new Loop(index.n, bound, (LabelNode)insns[h], cond, (JumpInsnNode)insns[p]);
+		
+		// The body: straight-line, one increment.
+		int increment = -1;
+		for (int k = c + 1; k < p; k++) {
+			final AbstractInsnNode insn = insns[k];
+			switch (insn.getType()) {
+			case AbstractInsnNode.JUMP_INSN:
+			case AbstractInsnNode.TABLESWITCH_INSN:
+			case AbstractInsnNode.LOOKUPSWITCH_INSN:
+			case AbstractInsnNode.METHOD_INSN:
+				return null;
+			case AbstractInsnNode.FIELD_INSN:
+				final FieldInsnNode field = (FieldInsnNode)insn;
+				if (!RedundantCheckAnalyzer.isTrackable(field)) {
+					return null;
+				}
+				if (field.getOpcode() == Opcodes.PUTFIELD || field.getOpcode() == Opcodes.PUTSTATIC) {
+					loop.stored.add(field.owner + '.' + field.name);
+				}
+				break;
+			case AbstractInsnNode.VAR_INSN:
+				if (insn.getOpcode() >= Opcodes.ISTORE && insn.getOpcode() <= Opcodes.ASTORE) {
+					final int var = ((VarInsnNode)insn).var;
+					loop.stored.add(var);
+					if (insn.getOpcode() == Opcodes.LSTORE || insn.getOpcode() == Opcodes.DSTORE) {
+						loop.stored.add(var + 1);
+					}
+				}
+				break;
+			case AbstractInsnNode.IINC_INSN:
+				final IincInsnNode iinc = (IincInsnNode)insn;
+				if (iinc.var == loop.i) {
+					if (increment >= 0 || iinc.incr != 1) {
+						return null;
+					}
+					increment = k;
+				} else {
+					loop.stored.add(iinc.var);
+				}
+				break;
+			case AbstractInsnNode.INSN:
+				switch (insn.getOpcode()) {
+				case Opcodes.ATHROW:
+				case Opcodes.IRETURN:
+				case Opcodes.LRETURN:
+				case Opcodes.FRETURN:
+				case Opcodes.DRETURN:
+				case Opcodes.ARETURN:
+				case Opcodes.RETURN:
+				case Opcodes.MONITORENTER:
+				case Opcodes.MONITOREXIT:
+					return null;
+				}
+				break;
+			}
+		}
+		if (increment < 0 || loop.stored.contains(loop.i) || !loop.isInvariant(bound, true)) {
+			return null;
+		}
+		
+		// The array accesses.
+		for (int k = c + 1; k < p; k++) {
+			final int opcode = insns[k].getOpcode();
+			if (isArrayAccess(opcode)) {
+				final Frame frame = frames[k];
+				if (frame == null) {
+					return null;
+				}
+				final int top = frame.getStackSize() - (isArrayStore(opcode) ? 3 : 2);
+				final Expr array = expr(frame.getStack(top));
+				final Affine at = Affine.of(expr(frame.getStack(top + 1)), loop.i);
+				if (array == null || !loop.isInvariantArray(array) || at == null || at.coef > 1 || !loop.isInvariant(at)) {
+					return null;
+				}
+				if (at.coef == 1 && k > increment) {
+					// i has already been incremented.
+					at.constant++;
+				}
+				boolean exact = k < increment;
+				for (int t = k + 1; exact && t < increment; t++) {
+					exact = !mayThrow(insns[t].getOpcode());
+				}
+				loop.accesses.add(new Access(insns[k], k, isArrayStore(opcode), exact, array, at));
+			}
+		}
+		return loop.accesses.isEmpty() ? null : loop;
+	}
+	
+	private static boolean inside(final int k, final int h, final int p) {
+		return k >= h && k <= p;
+	}
+	
+	private boolean jumpsInto(final AbstractInsnNode insn, final int h, final int p) {
+		switch (insn.getType()) {
+		case AbstractInsnNode.JUMP_INSN:
+			return inside(instructions.indexOf(((JumpInsnNode)insn).label), h, p);
+		case AbstractInsnNode.TABLESWITCH_INSN:
+			final TableSwitchInsnNode table = (TableSwitchInsnNode)insn;
+			return inside(instructions.indexOf(table.dflt), h, p) || jumpsInto(table.labels, h, p);
+		case AbstractInsnNode.LOOKUPSWITCH_INSN:
+			final LookupSwitchInsnNode lookup = (LookupSwitchInsnNode)insn;
+			return inside(instructions.indexOf(lookup.dflt), h, p) || jumpsInto(lookup.labels, h, p);
+		default:
+			return false;
+		}
+	}
+	
+	private boolean jumpsInto(final List<?> labels, final int h, final int p) {
+		for (final Object l : labels) {
+			if (inside(instructions.indexOf((LabelNode)l), h, p)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Can this instruction appear in a loop condition?
+	 */
+	private static boolean isPure(final int opcode) {
+		switch (opcode) {
+		case Opcodes.ILOAD:
+		case Opcodes.ALOAD:
+		case Opcodes.ICONST_M1:
+		case Opcodes.ICONST_0:
+		case Opcodes.ICONST_1:
+		case Opcodes.ICONST_2:
+		case Opcodes.ICONST_3:
+		case Opcodes.ICONST_4:
+		case Opcodes.ICONST_5:
+		case Opcodes.BIPUSH:
+		case Opcodes.SIPUSH:
+		case Opcodes.LDC:
+		case Opcodes.IADD:
+		case Opcodes.ISUB:
+		case Opcodes.GETFIELD:
+		case Opcodes.ARRAYLENGTH:
+			return true;
+		default:
+			return false;
+		}
+	}
+	
+	private static Expr expr(final Value v) {
+		return v instanceof ExprValue ? ((ExprValue)v).expr : null;
+	}
+	
+	/**
+	 * A counted loop.
+	 */
+	private class Loop {
+		/**
+		 * The index local.
+		 */
+		final int i;
+		final Expr bound;
+		final LabelNode head;
+		final JumpInsnNode cond, back;
+		/**
+		 * Locals (Integers) and fields (owner.name) stored in the loop.
+		 */
+		final HashSet<Object> stored = new HashSet<Object>();
+		final List<Access> accesses = new ArrayList<Access>();
+		
+		Loop(final int i, final Expr bound, final LabelNode head, final JumpInsnNode cond, final JumpInsnNode back) {
+			this.i = i;
+			this.bound = bound;
+			this.head = head;
+			this.cond = cond;
+			this.back = back;
+		}
+		
+		/**
+		 * Is e unchanged by the loop? Unless mayThrow, e must also be safe to
+		 * evaluate early.
+		 */
+		boolean isInvariant(final Expr e, final boolean mayThrow) {
+			switch (e.kind) {
+			case Expr.LOCAL:
+				return e.n != i && !stored.contains(e.n);
+			case Expr.CONST:
+				return true;
+			case Expr.ADD:
+			case Expr.SUB:
+				return isInvariant(e.a, mayThrow) && isInvariant(e.b, mayThrow);
+			case Expr.FIELD:
+				// Fields of this only, which cannot throw.
+				return (access & Opcodes.ACC_STATIC) == 0 && e.a.kind == Expr.LOCAL && e.a.n == 0 && isInvariant(e.a, mayThrow)
+						&& RedundantCheckAnalyzer.isTrackable(e.field) && !stored.contains(e.field.owner + '.' + e.field.name);
+			case Expr.LENGTH:
+				return mayThrow && isInvariant(e.a, mayThrow);
+			default:
+				return false;
+			}
+		}
+		
+		boolean isInvariant(final Affine a) {
+			for (final Expr e : a.plus) {
+				if (!isInvariant(e, false)) {
+					return false;
+				}
+			}
+			for (final Expr e : a.minus) {
+				if (!isInvariant(e, false)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		boolean isInvariantArray(final Expr e) {
+			return (e.kind == Expr.LOCAL && e.op == Opcodes.ALOAD || e.kind == Expr.FIELD) && isInvariant(e, false);
+		}
+		
+		/**
+		 * Replace the element hooks with range hooks.
+		 */
+		void coarsen() {
+			final int lo = maxLocals++;
+			final Expr start = new Expr(Expr.LOCAL, Opcodes.ILOAD, lo, null, null, null);
+			
+			// Before the loop: remember where i starts and check the reads if the loop will run.
+			final InsnList entry = new InsnList();
+			entry.add(new VarInsnNode(Opcodes.ILOAD, i));
+			entry.add(new VarInsnNode(Opcodes.ISTORE, lo));
+			final LabelNode noReads = new LabelNode();
+			entry.add(new VarInsnNode(Opcodes.ILOAD, lo));
+			bound.emit(entry);
+			entry.add(new JumpInsnNode(Opcodes.IF_ICMPGE, noReads));
+			final HashSet<String> done = new HashSet<String>();
+			for (final Access read : accesses) {
+				if (!read.write && done.add(read.toString())) {
+					read.array.emit(entry);
+					if (read.at.coef == 0) {
+						read.at.emit(entry, null, 0);
+						read.at.emit(entry, null, 1);
+					} else {
+						read.at.emit(entry, start, 0);
+						final Access writer = writtenFirst(read);
+						if (writer == null) {
+							read.at.emit(entry, bound, 0);
+						} else {
+							// Elements from the first write on are the loop's own.
+							writer.at.emit(entry, start, 0);
+							read.at.emit(entry, bound, 0);
+							entry.add(new MethodInsnNode(Opcodes.INVOKESTATIC, "java/lang/Math", "min", "(II)I"));
+						}
+					}
+					entry.add(new MethodInsnNode(Opcodes.INVOKESTATIC, ClassInstrumentor.RUNTIME_MONITOR_TYPE.getInternalName(), 
+							ClassInstrumentor.LOOP_RANGE_LOAD.getName(), ClassInstrumentor.LOOP_RANGE_LOAD.getDescriptor()));
+				}
+				coarsened.add(read.insn);
+			}
+			entry.add(noReads);
+			
+			noteInserted(entry);
+			instructions.insertBefore(head, entry);
+			
+			final List<Access> writes = new ArrayList<Access>();
+			for (final Access write : accesses) {
+				if (write.write && write.exact) {
+					if (done.add(write.toString())) {
+						writes.add(write);
+					}
+					coarsened.add(write.insn);
+				}
+			}
+			if (writes.isEmpty()) {
+				return;
+			}
+			
+			// On the way out: record the writes if the loop ran.
+			final InsnList exit = new InsnList();
+			final LabelNode out = new LabelNode();
+			cond.label = out;
+			exit.add(out);
+			recordWrites(exit, lo, writes);
+			noteInserted(exit);
+			instructions.insert(back, exit);
+			
+			// If the loop throws: record the writes so far and rethrow. The handler
+			// goes at the end, where nothing falls into it.
+			final int thrown = maxLocals++;
+			final InsnList handler = new InsnList();
+			final LabelNode caught = new LabelNode();
+			handler.add(caught);
+			handler.add(new VarInsnNode(Opcodes.ASTORE, thrown));
+			recordWrites(handler, lo, writes);
+			handler.add(new VarInsnNode(Opcodes.ALOAD, thrown));
+			handler.add(new InsnNode(Opcodes.ATHROW));
+			noteInserted(handler);
+			instructions.add(handler);
+			@SuppressWarnings("unchecked")
+			final List<TryCatchBlockNode> handlers = tryCatchBlocks;
+			handlers.add(0, new TryCatchBlockNode(head, out, caught, null));
+		}
+		
+		/**
+		 * Record writes over [start, i) if i > start.
+		 */
+		private void recordWrites(final InsnList code, final int lo, final List<Access> writes) {
+			final Expr start = new Expr(Expr.LOCAL, Opcodes.ILOAD, lo, null, null, null);
+			final Expr current = new Expr(Expr.LOCAL, Opcodes.ILOAD, i, null, null, null);
+			final LabelNode noWrites = new LabelNode();
+			code.add(new VarInsnNode(Opcodes.ILOAD, i));
+			code.add(new VarInsnNode(Opcodes.ILOAD, lo));
+			code.add(new JumpInsnNode(Opcodes.IF_ICMPLE, noWrites));
+			for (final Access write : writes) {
+				write.array.emit(code);
+				if (write.at.coef == 0) {
+					write.at.emit(code, null, 0);
+					write.at.emit(code, null, 1);
+				} else {
+					write.at.emit(code, start, 0);
+					write.at.emit(code, current, 0);
+				}
+				code.add(new MethodInsnNode(Opcodes.INVOKESTATIC, ClassInstrumentor.RUNTIME_MONITOR_TYPE.getInternalName(), 
+						ClassInstrumentor.LOOP_RANGE_STORE.getName(), ClassInstrumentor.LOOP_RANGE_STORE.getDescriptor()));
+			}
+			code.add(noWrites);
+		}
+		
+		private void noteInserted(final InsnList code) {
+			for (AbstractInsnNode insn = code.getFirst(); insn != null; insn = insn.getNext()) {
+				if (insn.getType() == AbstractInsnNode.FIELD_INSN) {
+					inserted.add(insn);
+				}
+			}
+		}
+		
+		/**
+		 * If every element read by read from some point on was first written by
+		 * the loop (all writes to the same array are at one comparable offset
+		 * at or before it), return such a write.
+		 */
+		private Access writtenFirst(final Access read) {
+			Access first = null;
+			for (final Access write : accesses) {
+				if (write.write && write.array.equals(read.array)) {
+					if (write.at.coef != 1 || !write.at.sameTerms(read.at) || first != null && first.at.constant != write.at.constant) {
+						return null;
+					}
+					if (first == null || write.index < first.index) {
+						first = write;
+					}
+				}
+			}
+			return first != null && (first.at.constant > read.at.constant 
+					|| first.at.constant == read.at.constant && first.index < read.index) ? first : null;
+		}
+	}
+	
+	/**
+	 * An array element access in a loop.
+	 */
+	private static class Access {
+		final AbstractInsnNode insn;
+		final int index;
+		final boolean write;
+		/**
+		 * Is the element accessed before i is incremented, with nothing in between that can throw?
+		 */
+		final boolean exact;
+		final Expr array;
+		final Affine at;
+		
+		Access(final AbstractInsnNode insn, final int index, final boolean write, final boolean exact, final Expr array, final Affine at) {
+			this.insn = insn;
+			this.index = index;
+			this.write = write;
+			this.exact = exact;
+			this.array = array;
+			this.at = at;
+		}
+		
+		@Override
+		public String toString() {
+			return (write ? "write " : "read ") + array + "[" + at + "]";
+		}
+	}
+	
+	/* Index expressions **************************************************************/
+	
+	/**
+	 * A side-effect-free int or reference expression over locals.
+	 */
+	private static final class Expr {
+		static final int LOCAL = 0, CONST = 1, ADD = 2, SUB = 3, FIELD = 4, LENGTH = 5;
+		
+		final int kind;
+		/**
+		 * Load opcode of a LOCAL.
+		 */
+		final int op;
+		/**
+		 * Local index or constant.
+		 */
+		final int n;
+		final Expr a, b;
+		final FieldInsnNode field;
+		
+		Expr(final int kind, final int op, final int n, final Expr a, final Expr b, final FieldInsnNode field) {
+			this.kind = kind;
+			this.op = op;
+			this.n = n;
+			this.a = a;
+			this.b = b;
+			this.field = field;
+		}
+		
+		void emit(final InsnList code) {
+			switch (kind) {
+			case LOCAL:
+				code.add(new VarInsnNode(op, n));
+				break;
+			case CONST:
+				push(code, n);
+				break;
+			case ADD:
+			case SUB:
+				a.emit(code);
+				b.emit(code);
+				code.add(new InsnNode(kind == ADD ? Opcodes.IADD : Opcodes.ISUB));
+				break;
+			case FIELD:
+				a.emit(code);
+				code.add(new FieldInsnNode(Opcodes.GETFIELD, field.owner, field.name, field.desc));
+				break;
+			case LENGTH:
+				a.emit(code);
+				code.add(new InsnNode(Opcodes.ARRAYLENGTH));
+				break;
+			}
+		}
+		
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Expr)) {
+				return false;
+			}
+			final Expr e = (Expr)o;
+			return kind == e.kind && op == e.op && n == e.n && (a == null ? e.a == null : a.equals(e.a)) 
+					&& (b == null ? e.b == null : b.equals(e.b)) 
+					&& (field == null ? e.field == null : e.field != null && field.owner.equals(e.field.owner) && field.name.equals(e.field.name));
+		}
+		
+		@Override
+		public int hashCode() {
+			return kind ^ n << 4 ^ (a == null ? 0 : a.hashCode() << 8) ^ (b == null ? 0 : b.hashCode() << 12) 
+					^ (field == null ? 0 : field.name.hashCode());
+		}
+		
+		@Override
+		public String toString() {
+			switch (kind) {
+			case LOCAL:
+				return "$" + n;
+			case CONST:
+				return String.valueOf(n);
+			case ADD:
+				return "(" + a + "+" + b + ")";
+			case SUB:
+				return "(" + a + "-" + b + ")";
+			case FIELD:
+				return a + "." + field.name;
+			default:
+				return a + ".length";
+			}
+		}
+	}
+	
+	private static void push(final InsnList code, final int n) {
+		if (n >= -1 && n <= 5) {
+			code.add(new InsnNode(Opcodes.ICONST_0 + n));
+		} else if (n >= Byte.MIN_VALUE && n <= Byte.MAX_VALUE) {
+			code.add(new IntInsnNode(Opcodes.BIPUSH, n));
+		} else if (n >= Short.MIN_VALUE && n <= Short.MAX_VALUE) {
+			code.add(new IntInsnNode(Opcodes.SIPUSH, n));
+		} else {
+			code.add(new LdcInsnNode(new Integer(n)));
+		}
+	}
+	
+	/**
+	 * An index coef * i + plus - minus + constant.
+	 */
+	private static final class Affine {
+		int coef, constant;
+		final List<Expr> plus = new ArrayList<Expr>(), minus = new ArrayList<Expr>();
+		
+		static Affine of(final Expr e, final int i) {
+			if (e == null) {
+				return null;
+			}
+			final Affine f = new Affine();
+			return f.add(e, i, 1) ? f : null;
+		}
+		
+		private boolean add(final Expr e, final int i, final int sign) {
+			switch (e.kind) {
+			case Expr.LOCAL:
+				if (e.n == i) {
+					coef += sign;
+				} else {
+					(sign > 0 ? plus : minus).add(e);
+				}
+				return true;
+			case Expr.CONST:
+				constant += sign * e.n;
+				return true;
+			case Expr.ADD:
+				return add(e.a, i, sign) && add(e.b, i, sign);
+			case Expr.SUB:
+				return add(e.a, i, sign) && add(e.b, i, -sign);
+			case Expr.FIELD:
+				(sign > 0 ? plus : minus).add(e);
+				return true;
+			default:
+				return false;
+			}
+		}
+		
+		boolean sameTerms(final Affine other) {
+			return plus.equals(other.plus) && minus.equals(other.minus);
+		}
+		
+		/**
+		 * Emit the index with i replaced by start (which is null if coef == 0), plus extra.
+		 */
+		void emit(final InsnList code, final Expr start, final int extra) {
+			boolean first = start == null;
+			if (!first) {
+				start.emit(code);
+			}
+			for (final Expr e : plus) {
+				e.emit(code);
+				if (first) {
+					first = false;
+				} else {
+					code.add(new InsnNode(Opcodes.IADD));
+				}
+			}
+			if (first) {
+				push(code, 0);
+			}
+			for (final Expr e : minus) {
+				e.emit(code);
+				code.add(new InsnNode(Opcodes.ISUB));
+			}
+			if (constant + extra != 0) {
+				push(code, constant + extra);
+				code.add(new InsnNode(Opcodes.IADD));
+			}
+		}
+		
+		@Override
+		public String toString() {
+			return coef + "i+" + plus + "-" + minus + "+" + constant;
+		}
+	}
+	
+	/**
+	 * A value known to be the result of an expression.
+	 */
+	private static final class ExprValue extends BasicValue {
+		final Expr expr;
+		
+		ExprValue(final Value basic, final Expr expr) {
+			super(((BasicValue)basic).getType());
+			this.expr = expr;
+		}
+		
+		@Override
+		public boolean equals(final Object o) {
+			return o instanceof ExprValue && ((ExprValue)o).expr.equals(expr) && super.equals(o);
+		}
+		
+		@Override
+		public int hashCode() {
+			return expr.hashCode();
+		}
+	}
+	
+	/**
+	 * Tracks the expressions computing int and reference values.
+	 */
+	private static final class ExprInterpreter extends BasicInterpreter {
+		
+		@Override
+		public Value newOperation(final AbstractInsnNode insn) throws AnalyzerException {
+			final int opcode = insn.getOpcode();
+			if (opcode >= Opcodes.ICONST_M1 && opcode <= Opcodes.ICONST_5) {
+				return constant(opcode - Opcodes.ICONST_0);
+			} else if (opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH) {
+				return constant(((IntInsnNode)insn).operand);
+			} else if (opcode == Opcodes.LDC && ((LdcInsnNode)insn).cst instanceof Integer) {
+				return constant(((Integer)((LdcInsnNode)insn).cst).intValue());
+			}
+			return super.newOperation(insn);
+		}
+		
+		private static Value constant(final int n) {
+			return new ExprValue(BasicValue.INT_VALUE, new Expr(Expr.CONST, 0, n, null, null, null));
+		}
+		
+		@Override
+		public Value copyOperation(final AbstractInsnNode insn, final Value value) throws AnalyzerException {
+			switch (insn.getOpcode()) {
+			case Opcodes.ILOAD:
+				return new ExprValue(BasicValue.INT_VALUE, new Expr(Expr.LOCAL, Opcodes.ILOAD, ((VarInsnNode)insn).var, null, null, null));
+			case Opcodes.ALOAD:
+				return new ExprValue(BasicValue.REFERENCE_VALUE, new Expr(Expr.LOCAL, Opcodes.ALOAD, ((VarInsnNode)insn).var, null, null, null));
+			default:
+				return super.copyOperation(insn, value);
+			}
+		}
+		
+		@Override
+		public Value unaryOperation(final AbstractInsnNode insn, final Value value) throws AnalyzerException {
+			final Value v = super.unaryOperation(insn, value);
+			if (value instanceof ExprValue && (v == BasicValue.INT_VALUE || v == BasicValue.REFERENCE_VALUE)) {
+				switch (insn.getOpcode()) {
+				case Opcodes.ARRAYLENGTH:
+					return new ExprValue(v, new Expr(Expr.LENGTH, 0, 0, ((ExprValue)value).expr, null, null));
+				case Opcodes.GETFIELD:
+					return new ExprValue(v, new Expr(Expr.FIELD, 0, 0, ((ExprValue)value).expr, null, (FieldInsnNode)insn));
+				}
+			}
+			return v;
+		}
+		
+		@Override
+		public Value binaryOperation(final AbstractInsnNode insn, final Value value1, final Value value2) throws AnalyzerException {
+			if ((insn.getOpcode() == Opcodes.IADD || insn.getOpcode() == Opcodes.ISUB) 
+					&& value1 instanceof ExprValue && value2 instanceof ExprValue) {
+				return new ExprValue(BasicValue.INT_VALUE, new Expr(insn.getOpcode() == Opcodes.IADD ? Expr.ADD : Expr.SUB, 0, 0, 
+						((ExprValue)value1).expr, ((ExprValue)value2).expr, null));
+			}
+			return super.binaryOperation(insn, value1, value2);
+		}
+		
+		@Override
+		public Value merge(final Value v, final Value w) {
+			if (!(v instanceof ExprValue)) {
+				return super.merge(v, w);
+			}
+			if (v.equals(w)) {
+				return v;
+			}
+			// Different expressions: just the type.
+			return super.merge(((BasicValue)v).isReference() ? BasicValue.REFERENCE_VALUE : BasicValue.INT_VALUE, w);
+		}
+	}
+	
+}
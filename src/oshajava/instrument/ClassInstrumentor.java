@@ -34,6 +34,7 @@ package oshajava.instrument;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Set;
 
@@ -58,6 +59,7 @@ import oshajava.support.org.objectweb.asm.FieldVisitor;
 import oshajava.support.org.objectweb.asm.MethodVisitor;
 import oshajava.support.org.objectweb.asm.Opcodes;
 import oshajava.support.org.objectweb.asm.Type;
+import oshajava.support.org.objectweb.asm.commons.CodeSizeEvaluator;
 import oshajava.support.org.objectweb.asm.commons.GeneratorAdapter;
 import oshajava.support.org.objectweb.asm.commons.JSRInlinerAdapter;
 import oshajava.support.org.objectweb.asm.commons.Method;
@@ -65,7 +67,7 @@ import oshajava.support.org.objectweb.asm.commons.Method;
 
 public class ClassInstrumentor extends ClassAdapter {
 
-	protected static final Type BIT_VECTOR_INT_SET_TYPE = Type.getType(oshajava.util.BitVectorIntSet.class);
+	protected static final Type WRITER_CACHE_TYPE       = Type.getType(oshajava.util.ConcurrentBitVectorIntSet.class);
 	protected static final Type STRING_TYPE             = Type.getType(java.lang.String.class);
 	protected static final Type STACK_TYPE              = Type.getType(oshajava.runtime.Stack.class);
 	protected static final Type STATE_TYPE              = Type.getType(oshajava.runtime.State.class);
@@ -87,9 +89,15 @@ public class ClassInstrumentor extends ClassAdapter {
 	protected static final String ID_FIELD       			= "id";
 	protected static final String CURRENT_STATE_FIELD       = "state";
 	protected static final String THREAD_FIELD              = "thread";
+	protected static final String WORD_FIELD                = "word";
 	protected static final String SHADOW_INIT_METHOD_PREFIX = "__osha_shadow_field_initer";
 
-	protected static final ObjectTypeDescriptor OBJECT_WITH_STATE = TypeDescriptor.ofClass(oshajava.runtime.ObjectWithState.class.getCanonicalName());
+	protected static final Type   LOCK_STATE_TYPE           = Type.getType(oshajava.runtime.LockState.class);
+	protected static final Type   LOCK_STATE_HOLDER_TYPE    = Type.getType(oshajava.runtime.LockStateHolder.class);
+	protected static final String LOCK_STATE_FIELD          = "__osha_lock_state";
+	protected static final Type   INLINE_CACHE_TYPE         = Type.getType(oshajava.runtime.InlineCache.class);
+	protected static final String INLINE_CACHE_FIELD_PREFIX = "__osha_ic";
+	protected static final String CHECK_STUB_PREFIX         = "__osha_check";
 
 	protected static final Type[] ARGS_NONE              = new Type[0];
 	protected static final Type[] ARGS_INT               = { Type.INT_TYPE };
@@ -119,24 +127,47 @@ public class ClassInstrumentor extends ClassAdapter {
 
 	protected static final Method HOOK_THREAD_STATE  = new Method("getThreadState",   THREAD_STATE_TYPE, ARGS_NONE);
 	protected static final Method HOOK_CURRENT_STATE = new Method("getCurrentState",  STATE_TYPE,        ARGS_NONE);
+	protected static final Method HOOK_MATERIALIZE   = new Method("materialize",      STATE_TYPE,        new Type[] { THREAD_STATE_TYPE });
+	protected static final Method HOOK_CURRENT_SHADOW_WORD = new Method("getCurrentShadowWord", Type.LONG_TYPE, ARGS_NONE);
 	protected static final Method HOOK_CLINIT_STATE  = new Method("classInitializer", STATE_TYPE,        new Type[] { THREAD_STATE_TYPE });
 
 	protected static final Method HOOK_READ             = new Method("checkFieldRead", Type.VOID_TYPE, new Type[] { STATE_TYPE, STATE_TYPE, Type.getType(String.class) });
 	protected static final Method HOOK_READ_STACK_TRACE = new Method("checkFieldRead", Type.VOID_TYPE, new Type[] { STATE_TYPE, STATE_TYPE, Type.getType(String.class), STACKTRACE_TYPE });
+	protected static final Method HOOK_PACKED_READ             = new Method("checkPackedFieldRead", Type.VOID_TYPE, new Type[] { Type.LONG_TYPE, STATE_TYPE, Type.getType(String.class) });
+	protected static final Method HOOK_PACKED_READ_STACK_TRACE = new Method("checkPackedFieldRead", Type.VOID_TYPE, new Type[] { Type.LONG_TYPE, STATE_TYPE, Type.getType(String.class), STACKTRACE_TYPE });
 	
-	protected static final Method HOOK_ARRAY_LOAD         = new Method("arrayRead",        Type.VOID_TYPE, new Type[] {OBJECT_TYPE, Type.INT_TYPE, THREAD_STATE_TYPE, BIT_VECTOR_INT_SET_TYPE});
+	protected static final Method HOOK_ARRAY_LOAD         = new Method("arrayRead",        Type.VOID_TYPE, new Type[] {OBJECT_TYPE, Type.INT_TYPE, THREAD_STATE_TYPE, WRITER_CACHE_TYPE});
 	protected static final Method HOOK_ARRAY_STORE        = new Method("arrayWrite",       Type.VOID_TYPE, new Type[] {OBJECT_TYPE, Type.INT_TYPE, STATE_TYPE, THREAD_STATE_TYPE});
-	protected static final Method HOOK_COARSE_ARRAY_LOAD  = new Method("coarseArrayRead",  Type.VOID_TYPE, new Type[] {OBJECT_TYPE, THREAD_STATE_TYPE, BIT_VECTOR_INT_SET_TYPE} );
+	protected static final Method HOOK_COARSE_ARRAY_LOAD  = new Method("coarseArrayRead",  Type.VOID_TYPE, new Type[] {OBJECT_TYPE, THREAD_STATE_TYPE, WRITER_CACHE_TYPE} );
 	protected static final Method HOOK_COARSE_ARRAY_STORE = new Method("coarseArrayWrite", Type.VOID_TYPE, new Type[] {OBJECT_TYPE, STATE_TYPE, THREAD_STATE_TYPE});
+	protected static final Method HOOK_ARRAY_RANGE_LOAD   = new Method("arrayRangeRead",   Type.VOID_TYPE, new Type[] {OBJECT_TYPE, Type.INT_TYPE, Type.INT_TYPE, THREAD_STATE_TYPE, WRITER_CACHE_TYPE});
+	protected static final Method HOOK_ARRAY_RANGE_STORE  = new Method("arrayRangeWrite",  Type.VOID_TYPE, new Type[] {OBJECT_TYPE, Type.INT_TYPE, Type.INT_TYPE, STATE_TYPE, THREAD_STATE_TYPE});
+	// Placeholders for the range hooks, completed by MethodInstrumentor.
+	protected static final Method LOOP_RANGE_LOAD         = new Method("arrayRangeRead",   Type.VOID_TYPE, new Type[] {OBJECT_TYPE, Type.INT_TYPE, Type.INT_TYPE});
+	protected static final Method LOOP_RANGE_STORE        = new Method("arrayRangeWrite",  Type.VOID_TYPE, new Type[] {OBJECT_TYPE, Type.INT_TYPE, Type.INT_TYPE});
+	protected static final Method HOOK_NEW_ARRAY          = new Method("newArray",         Type.VOID_TYPE, new Type[] {OBJECT_TYPE, Type.INT_TYPE, THREAD_STATE_TYPE});
+
+	protected static final Method HOOK_COARSE_FIELD_WRITE = new Method("coarseFieldWrite", STATE_TYPE,     new Type[] {OBJECT_TYPE, STATE_TYPE, STATE_TYPE, Type.getType(String.class), Type.getType(String.class)});
+	protected static final Method HOOK_SPLIT_FIELD_READ   = new Method("splitFieldRead",   Type.VOID_TYPE, new Type[] {OBJECT_TYPE, STATE_TYPE, Type.getType(String.class), Type.getType(String.class)});
+	protected static final String SPLIT_STATE_FIELD = "SPLIT";
 
 	protected static final Method HOOK_ACQUIRE  = new Method("acquire",  Type.VOID_TYPE, new Type[] {OBJECT_TYPE, THREAD_STATE_TYPE, STATE_TYPE});
 	protected static final Method HOOK_RELEASE  = new Method("release",  Type.VOID_TYPE, ARGS_OBJECT_THREAD);
 	protected static final Method HOOK_PREWAIT  = new Method("prewait",  Type.INT_TYPE,  ARGS_OBJECT_THREAD);
 	protected static final Method HOOK_POSTWAIT = new Method("postwait", Type.VOID_TYPE, new Type[] {OBJECT_TYPE, Type.INT_TYPE, THREAD_STATE_TYPE, STATE_TYPE});
+	protected static final Method HOOK_ACQUIRE_HOLDER = new Method("acquire", Type.VOID_TYPE, new Type[] {LOCK_STATE_HOLDER_TYPE, THREAD_STATE_TYPE, STATE_TYPE});
+	protected static final Method HOOK_RELEASE_HOLDER = new Method("release", Type.VOID_TYPE, new Type[] {LOCK_STATE_HOLDER_TYPE, THREAD_STATE_TYPE});
+
+	protected static final Method GET_LOCK_STATE_METHOD = new Method("__osha_get_lock_state", LOCK_STATE_TYPE, ARGS_NONE);
+	protected static final Method SET_LOCK_STATE_METHOD = new Method("__osha_set_lock_state", Type.VOID_TYPE, new Type[] { LOCK_STATE_TYPE });
 
 	protected static final Method INSTANCE_SHADOW_INIT_METHOD = new Method(SHADOW_INIT_METHOD_PREFIX,             Type.VOID_TYPE, ARGS_NONE);
 	protected static final Method STATIC_SHADOW_INIT_METHOD   = new Method(SHADOW_INIT_METHOD_PREFIX + "_clinit", Type.VOID_TYPE, ARGS_NONE);
 
+	protected static final Method HOOK_IC_VALIDATED = new Method("validated",  INLINE_CACHE_TYPE, new Type[] { STATE_TYPE, STATE_TYPE });
+	protected static final Method HOOK_IC_HIT       = new Method("countHit",   Type.VOID_TYPE, ARGS_INT);
+	protected static final Method HOOK_IC_MISS      = new Method("countMiss",  Type.VOID_TYPE, ARGS_INT);
+
 	protected static final Method HOOK_COUNT_READ = new Method("countRead", Type.VOID_TYPE, ARGS_NONE);
 	protected static final Method HOOK_COUNT_COMM = new Method("countComm", Type.VOID_TYPE, ARGS_NONE);
 
@@ -154,6 +185,10 @@ public class ClassInstrumentor extends ClassAdapter {
 	protected final ClassLoader loader;
 	private final ArrayList<FieldDescriptor> instanceShadowedFields = new ArrayList<FieldDescriptor>();
 	private final ArrayList<FieldDescriptor> staticShadowedFields = new ArrayList<FieldDescriptor>();
+	private final ArrayList<String> groupShadowFields = new ArrayList<String>();
+	private boolean lockStateHolder;
+	private int inlineCaches = 0;
+	private final LinkedHashMap<String,CheckStub> checkStubs = new LinkedHashMap<String,CheckStub>();
 	private ModuleMap moduleMap;
 
 	public ClassInstrumentor(ClassVisitor cv, ClassLoader loader) {
@@ -223,6 +258,123 @@ public class ClassInstrumentor extends ClassAdapter {
 //		return fields;
 //	}
 
+	/**
+	 * Type of per-field shadows: State, or a packed long with -packedShadows.
+	 */
+	protected static Type shadowType() {
+		return Config.packedShadowsOption.get() ? Type.LONG_TYPE : STATE_TYPE;
+	}
+	
+	/**
+	 * Push the current shadow value (of shadowType()) by calling the runtime.
+	 * @param g
+	 */
+	protected static void pushCurrentShadow(final GeneratorAdapter g) {
+		g.invokeStatic(RUNTIME_MONITOR_TYPE, Config.packedShadowsOption.get() ? HOOK_CURRENT_SHADOW_WORD : HOOK_CURRENT_STATE);
+	}
+	
+	/**
+	 * Add the shadow field for a group of coarse instance fields. Group shadows
+	 * are always States and public, since they stand for fields of any access.
+	 * 
+	 * @param group
+	 */
+	private void addGroupShadowField(String group) {
+		if (!groupShadowFields.contains(group)) {
+			int newAccess = Opcodes.ACC_PUBLIC | Opcodes.ACC_SYNTHETIC;
+	        if (Agent.volatileShadowOption.get()) {
+	        	newAccess |= Opcodes.ACC_VOLATILE;
+	        }
+	        final FieldVisitor fv = super.visitField(newAccess, FieldGroups.shadowFieldName(group), STATE_TYPE.getDescriptor(), null, null);
+			if (fv != null) {
+				fv.visitEnd();
+			}
+			if (Config.stackTracesOption.get()) {
+			    final FieldVisitor stfv = super.visitField(newAccess, FieldGroups.stackTraceFieldName(group), STACKTRACE_DESC, null, null);
+    			if (stfv != null) {
+    				stfv.visitEnd();
+    			}
+			}
+			groupShadowFields.add(group);
+		}
+	}
+	
+	/**
+	 * Get a new inline cache slot for a read site in this class, or null if
+	 * inline caches are off or this is an interface (whose fields are final).
+	 */
+	protected String newInlineCache() {
+		if (!Config.inlineCachesOption.get() || (classAccess & Opcodes.ACC_INTERFACE) != 0) {
+			return null;
+		}
+		return INLINE_CACHE_FIELD_PREFIX + inlineCaches++;
+	}
+	
+	/**
+	 * A field read whose check is outlined into a static stub (-outlineChecks).
+	 */
+	private static class CheckStub {
+		final int opcode;
+		final String owner, name, desc;
+		final Method stub;
+		CheckStub(int opcode, String owner, String name, String desc, Method stub) {
+			this.opcode = opcode;
+			this.owner = owner;
+			this.name = name;
+			this.desc = desc;
+			this.stub = stub;
+		}
+	}
+	
+	/**
+	 * Get the check stub for reads of a field from this class, adding it if
+	 * it is new. GETFIELD stubs take the object, and all stubs then take the
+	 * current thread, state and writer cache.
+	 */
+	protected Method checkStub(int opcode, String owner, String name, String desc) {
+		final String key = owner + "." + name;
+		CheckStub cs = checkStubs.get(key);
+		if (cs == null) {
+			final Type[] args = opcode == Opcodes.GETFIELD ? 
+					new Type[] { Type.getType(getDescriptor(owner)), THREAD_STATE_TYPE, STATE_TYPE, WRITER_CACHE_TYPE } :
+					new Type[] { THREAD_STATE_TYPE, STATE_TYPE, WRITER_CACHE_TYPE };
+			cs = new CheckStub(opcode, owner, name, desc, new Method(CHECK_STUB_PREFIX + checkStubs.size(), Type.VOID_TYPE, args));
+			checkStubs.put(key, cs);
+		}
+		return cs.stub;
+	}
+	
+	/**
+	 * Add the lock state field and its LockStateHolder accessors.
+	 */
+	private void addLockState() {
+		final int access = Opcodes.ACC_PRIVATE | Opcodes.ACC_SYNTHETIC;
+		final FieldVisitor fv = super.visitField(access, LOCK_STATE_FIELD, LOCK_STATE_TYPE.getDescriptor(), null, null);
+		if (fv != null) {
+			fv.visitEnd();
+		}
+		
+		final int methodAccess = Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SYNTHETIC;
+		final GeneratorAdapter get = new GeneratorAdapter(methodAccess, GET_LOCK_STATE_METHOD, 
+				super.visitMethod(methodAccess, GET_LOCK_STATE_METHOD.getName(), GET_LOCK_STATE_METHOD.getDescriptor(), null, null));
+		get.visitCode();
+		get.loadThis();
+		get.getField(classType.getAsmType(), LOCK_STATE_FIELD, LOCK_STATE_TYPE);
+		get.returnValue();
+		get.visitMaxs(1, 1);
+		get.visitEnd();
+		
+		final GeneratorAdapter set = new GeneratorAdapter(methodAccess, SET_LOCK_STATE_METHOD, 
+				super.visitMethod(methodAccess, SET_LOCK_STATE_METHOD.getName(), SET_LOCK_STATE_METHOD.getDescriptor(), null, null));
+		set.visitCode();
+		set.loadThis();
+		set.loadArg(0);
+		set.putField(classType.getAsmType(), LOCK_STATE_FIELD, LOCK_STATE_TYPE);
+		set.returnValue();
+		set.visitMaxs(2, 2);
+		set.visitEnd();
+	}
+	
 	/**
 	 * Add a shadow field for a given field.
 	 * 
@@ -255,7 +407,7 @@ public class ClassInstrumentor extends ClassAdapter {
 
 	        final FieldVisitor fv = super.visitField(
 					newAccess,
-					fd.getFieldName() + SHADOW_FIELD_SUFFIX, STATE_DESC, null, null
+					fd.getFieldName() + SHADOW_FIELD_SUFFIX, shadowType().getDescriptor(), null, null
 			);
 			if (fv != null) {
 				fv.visitEnd();
@@ -304,13 +456,6 @@ public class ClassInstrumentor extends ClassAdapter {
 		// The real super type of this class.
 		this.superType = TypeDescriptor.ofClass(superName);
 		
-		// If we're doing object-granularity tracking, we put in some shim right before Object.
-		if (Config.objectTrackingOption.get() == Config.Granularity.COARSE && (access & Opcodes.ACC_INTERFACE) == 0 && 
-				(superName == null || superType.equals(TypeDescriptor.OBJECT))) {
-			superType = TypeDescriptor.ofClass("oshajava.runtime.ObjectWithState");
-			superName = superType.getInternalName();
-		}
-		
 		// Tell the class type about its superclass type.
 		classType.setSuperType(superType);
 
@@ -323,6 +468,17 @@ public class ClassInstrumentor extends ClassAdapter {
 			}
 		}
 
+		// With lock tracking, the first instrumented class in a hierarchy holds the lock state.
+		lockStateHolder = Config.lockTrackingOption.get() && (access & Opcodes.ACC_INTERFACE) == 0 && !Filter.shouldInstrument(superType);
+		if (lockStateHolder) {
+			final String[] withHolder = new String[interfaces == null ? 1 : interfaces.length + 1];
+			if (interfaces != null) {
+				System.arraycopy(interfaces, 0, withHolder, 0, interfaces.length);
+			}
+			withHolder[withHolder.length - 1] = LOCK_STATE_HOLDER_TYPE.getInternalName();
+			interfaces = withHolder;
+		}
+
 		// TODO Fix frames so we can actually support Java 6 class file format in full.
 		super.visit((version == Opcodes.V1_6 ? Opcodes.V1_5 : version), access, name, signature, superName, interfaces);
 		{
@@ -335,12 +491,17 @@ public class ClassInstrumentor extends ClassAdapter {
 
 			for (FieldDescriptor fd : superFields) {
 				FieldDescriptor myFd = FieldDescriptor.of(classType, fd.getFieldName(), fd.getFieldType(), fd.getAccessFlags());
-				if (!Filter.shouldInstrument(superType) && Filter.shouldInstrument(myFd)) {
+				if (!Filter.shouldInstrument(superType) && Filter.shouldInstrument(myFd) && (myFd.isStatic() || !FieldGroups.isCoarse(myFd))) {
 					addShadowField(myFd);
 				}
 			}
 		}
 		
+		// The first instrumented class in a hierarchy holds the object group shadow.
+		if (FieldGroups.anyCoarse() && (access & Opcodes.ACC_INTERFACE) == 0 && !Filter.shouldInstrument(superType)) {
+			addGroupShadowField(FieldGroups.OBJECT_GROUP);
+		}
+		
 //		// Get this class' superclass to find inherited fields that need to be shadowed.
 //		Class<?> superclass = classForName(superType.getSourceName());
 //		if (superclass == null) {
@@ -368,10 +529,17 @@ public class ClassInstrumentor extends ClassAdapter {
 	
 	@Override
 	public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
-		if (  (Config.objectTrackingOption.get() == Config.Granularity.FINE || (access & Opcodes.ACC_STATIC) != 0)) {
+		final FieldDescriptor fd = FieldDescriptor.of(classType, name, TypeDescriptor.fromDescriptorString(desc), access);
+		if ((access & Opcodes.ACC_STATIC) != 0 || 
+				(Config.objectTrackingOption.get() != Config.Granularity.NONE && !FieldGroups.isCoarse(fd))) {
 			// TODO option to ignore final fields. how?
 			// We make all state fields non-final to be able to set them from outside a constructor
-			addShadowField(FieldDescriptor.of(classType, name, TypeDescriptor.fromDescriptorString(desc), access));
+			addShadowField(fd);
+		} else if (Config.objectTrackingOption.get() != Config.Granularity.NONE && Filter.shouldInstrument(fd)) {
+			final String[] group = FieldGroups.groupOf(fd, loader);
+			if (group != null) {
+				addGroupShadowField(group[1]);
+			}
 		}
 		return super.visitField(access, name, desc, signature, value);
 	}
@@ -418,7 +586,17 @@ public class ClassInstrumentor extends ClassAdapter {
 		    			}
 		    		}
 		    		chain = new HandlerSorterAdapter(chain, access, name, desc, signature, exceptions);
-		    		chain = new MethodInstrumentor(chain, access, name, desc, module, method);
+		    		final CodeSizeEvaluator codeSize = Config.outlineChecksOption.get() == Config.CheckOutlining.OVER_BUDGET ? 
+		    				new CodeSizeEvaluator(chain) : null;
+		    		final MethodInstrumentor mi = new MethodInstrumentor(codeSize == null ? chain : codeSize, access, name, desc, module, method, this);
+		    		mi.setCodeSize(codeSize);
+		    		chain = mi;
+		    		if (Config.redundantChecksOption.get()) {
+		    			chain = new RedundantCheckAnalyzer(classType.getInternalName(), mi, access, name, desc, signature, exceptions);
+		    		}
+		    		if (Config.coarsenArrayLoopsOption.get() && Config.arrayTrackingOption.get() != Config.Granularity.NONE) {
+		    			chain = new ArrayLoopCoarsener(classType.getInternalName(), chain, mi, access, name, desc, signature, exceptions);
+		    		}
 		    		chain = new JSRInlinerAdapter(chain, access, name, desc, signature, exceptions);
 		    	}
 			} else if (name.equals("<clinit>") && (classAccess & Opcodes.ACC_INTERFACE) != 0) {
@@ -437,6 +615,22 @@ public class ClassInstrumentor extends ClassAdapter {
 
 	@Override
 	public void visitEnd() {
+		if (lockStateHolder) {
+			addLockState();
+		}
+		// Stubs may add inline caches.
+		for (CheckStub cs : checkStubs.values()) {
+			final int access = Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC;
+			new MethodInstrumentor(super.visitMethod(access, cs.stub.getName(), cs.stub.getDescriptor(), null, null), 
+					access, cs.stub.getName(), cs.stub.getDescriptor(), this).generateCheckStub(cs.opcode, cs.owner, cs.name, cs.desc);
+		}
+		for (int i = 0; i < inlineCaches; i++) {
+			final FieldVisitor fv = super.visitField(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, 
+					INLINE_CACHE_FIELD_PREFIX + i, INLINE_CACHE_TYPE.getDescriptor(), null, null);
+			if (fv != null) {
+				fv.visitEnd();
+			}
+		}
 		if ((classAccess & Opcodes.ACC_INTERFACE) == 0) {
 			// instance.
 			GeneratorAdapter instance = new GeneratorAdapter(Opcodes.ACC_PROTECTED | Opcodes.ACC_SYNTHETIC, INSTANCE_SHADOW_INIT_METHOD, 
@@ -450,15 +644,15 @@ public class ClassInstrumentor extends ClassAdapter {
 				instance.visitMethodInsn(Opcodes.INVOKESPECIAL, superType.getInternalName(), INSTANCE_SHADOW_INIT_METHOD.getName(), INSTANCE_SHADOW_INIT_METHOD.getDescriptor());
 			}
 			if (!instanceShadowedFields.isEmpty()) {
-				int varCurrentState = instance.newLocal(STATE_TYPE);
-				instance.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_CURRENT_STATE);
+				int varCurrentState = instance.newLocal(shadowType());
+				pushCurrentShadow(instance);
 				instance.storeLocal(varCurrentState);
 
 				for (FieldDescriptor field : instanceShadowedFields) {
 				    // Shadow field.
 					instance.loadThis();
 					instance.loadLocal(varCurrentState);
-					instance.visitFieldInsn(Opcodes.PUTFIELD, field.getDeclaringType().getInternalName(), field.getFieldName() + SHADOW_FIELD_SUFFIX, STATE_DESC);
+					instance.visitFieldInsn(Opcodes.PUTFIELD, field.getDeclaringType().getInternalName(), field.getFieldName() + SHADOW_FIELD_SUFFIX, shadowType().getDescriptor());
 					
 					// Traceback field.
 					if (Config.stackTracesOption.get()) {
@@ -468,8 +662,27 @@ public class ClassInstrumentor extends ClassAdapter {
 					    instance.visitFieldInsn(Opcodes.PUTFIELD, field.getDeclaringType().getInternalName(), field.getFieldName() + STACKTRACE_FIELD_SUFFIX, STACKTRACE_DESC);
 					}
 				}
+			}
+			if (!groupShadowFields.isEmpty()) {
+				int varCurrentState = instance.newLocal(STATE_TYPE);
+				instance.invokeStatic(RUNTIME_MONITOR_TYPE, HOOK_CURRENT_STATE);
+				instance.storeLocal(varCurrentState);
+
+				for (String group : groupShadowFields) {
+					instance.loadThis();
+					instance.loadLocal(varCurrentState);
+					instance.visitFieldInsn(Opcodes.PUTFIELD, classType.getInternalName(), FieldGroups.shadowFieldName(group), STATE_TYPE.getDescriptor());
+					if (Config.stackTracesOption.get()) {
+					    instance.loadThis();
+					    instance.push(0);
+					    instance.newArray(STACKTRACE_TYPE.getElementType());
+					    instance.visitFieldInsn(Opcodes.PUTFIELD, classType.getInternalName(), FieldGroups.stackTraceFieldName(group), STACKTRACE_DESC);
+					}
+				}
+			}
+			if (!instanceShadowedFields.isEmpty() || !groupShadowFields.isEmpty()) {
 				instance.visitInsn(Opcodes.RETURN);
-				instance.visitMaxs(2, 1);
+				instance.visitMaxs(3, 4);
 			} else {
 				instance.visitInsn(Opcodes.RETURN);
 				instance.visitMaxs(1, 0);
@@ -482,14 +695,14 @@ public class ClassInstrumentor extends ClassAdapter {
 						super.visitMethod(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, STATIC_SHADOW_INIT_METHOD.getName(), STATIC_SHADOW_INIT_METHOD.getDescriptor(), null, null));
 				stat.visitCode();
 				if (!staticShadowedFields.isEmpty()) {
-					int varCurrentState = stat.newLocal(STATE_TYPE);
-					stat.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_CURRENT_STATE);
+					int varCurrentState = stat.newLocal(shadowType());
+					pushCurrentShadow(stat);
 					stat.storeLocal(varCurrentState);
 					
 					for (FieldDescriptor field : staticShadowedFields) {
 					    // Shadow field.
 						stat.loadLocal(varCurrentState);
-						stat.visitFieldInsn(Opcodes.PUTSTATIC, field.getDeclaringType().getInternalName(), field.getFieldName() + SHADOW_FIELD_SUFFIX, STATE_DESC);
+						stat.visitFieldInsn(Opcodes.PUTSTATIC, field.getDeclaringType().getInternalName(), field.getFieldName() + SHADOW_FIELD_SUFFIX, shadowType().getDescriptor());
 						
 						// Traceback field.
     					if (Config.stackTracesOption.get()) {
@@ -499,7 +712,7 @@ public class ClassInstrumentor extends ClassAdapter {
     					}
 					}
 					stat.visitInsn(Opcodes.RETURN);
-					stat.visitMaxs(1, 1);
+					stat.visitMaxs(2, 1);
 				} else {
 					stat.visitInsn(Opcodes.RETURN);
 					stat.visitMaxs(0, 0);
@@ -0,0 +1,199 @@
+/*
+
+Copyright (c) 2010, Benjamin P. Wood and Adrian Sampson, University of Washington
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the University of Washington nor the names of its
+   contributors may be used to endorse or promote products derived from this
+   software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+*/
+
+
+package oshajava.instrument;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+import oshajava.annotation.ShadowGroup;
+import oshajava.runtime.Config;
+import oshajava.spec.names.FieldDescriptor;
+import oshajava.spec.names.ObjectTypeDescriptor;
+import oshajava.spec.names.TypeDescriptor;
+import oshajava.support.acme.util.Assert;
+import oshajava.support.org.objectweb.asm.AnnotationVisitor;
+import oshajava.support.org.objectweb.asm.ClassReader;
+import oshajava.support.org.objectweb.asm.FieldVisitor;
+import oshajava.support.org.objectweb.asm.Opcodes;
+import oshajava.support.org.objectweb.asm.Type;
+import oshajava.support.org.objectweb.asm.commons.EmptyVisitor;
+
+/**
+ * Maps instance fields to shadow groups for object-granularity tracking.
+ * 
+ * A coarse instance field is tracked by a group shadow field instead of a
+ * shadow of its own. The object group is the __osha_state field, declared
+ * once in each instrumented class whose superclass is not instrumented and
+ * inherited by its subclasses. Fields annotated @ShadowGroup("g") share the
+ * group field $g__osha_state of their declaring class instead.
+ * 
+ * Annotations are read from class files, so a field's group is known at
+ * every access site before the declaring class is loaded.
+ * 
+ * @author bpw
+ *
+ */
+public class FieldGroups {
+	
+	/**
+	 * Name of the object group.
+	 */
+	protected static final String OBJECT_GROUP = "";
+	
+	private static final String GROUP_PREFIX = "$";
+	private static final String ANNOTATION_DESC = Type.getDescriptor(ShadowGroup.class);
+	
+	/**
+	 * Is any instance field tracked coarsely? If so, every root instrumented class
+	 * gets an object group shadow field.
+	 */
+	protected static boolean anyCoarse() {
+		return Config.objectTrackingOption.get() == Config.Granularity.COARSE || !Filter.coarseOption.get().isEmpty();
+	}
+	
+	/**
+	 * Is this instance field tracked by a group shadow? (Static fields are always fine.)
+	 * @param field
+	 * @return
+	 */
+	protected static boolean isCoarse(FieldDescriptor field) {
+		final Config.Granularity policy = Filter.granularity(field);
+		return policy == Config.Granularity.COARSE || 
+			(policy == null && Config.objectTrackingOption.get() == Config.Granularity.COARSE);
+	}
+	
+	/**
+	 * Name of the shadow field for a group.
+	 */
+	protected static String shadowFieldName(String group) {
+		return group == OBJECT_GROUP ? ClassInstrumentor.SHADOW_FIELD_SUFFIX : GROUP_PREFIX + group + ClassInstrumentor.SHADOW_FIELD_SUFFIX;
+	}
+	
+	/**
+	 * Name of the stack trace field for a group.
+	 */
+	protected static String stackTraceFieldName(String group) {
+		return group == OBJECT_GROUP ? ClassInstrumentor.STACKTRACE_FIELD_SUFFIX : GROUP_PREFIX + group + ClassInstrumentor.STACKTRACE_FIELD_SUFFIX;
+	}
+	
+	/**
+	 * Fields declared by a class and their annotated groups (OBJECT_GROUP if none).
+	 */
+	private static final HashMap<ObjectTypeDescriptor,HashMap<String,String>> table = new HashMap<ObjectTypeDescriptor,HashMap<String,String>>();
+	private static final HashMap<ObjectTypeDescriptor,ObjectTypeDescriptor> superTypes = new HashMap<ObjectTypeDescriptor,ObjectTypeDescriptor>();
+	
+	/**
+	 * Get the group of a coarse field accessed through owner, and the class that
+	 * declares the group's shadow field. Returns null for the object group, whose
+	 * shadow field is reached through owner.
+	 * 
+	 * @param field the field as named at the access (owner.name)
+	 * @param loader
+	 * @return { declaring class internal name, group } or null
+	 */
+	protected static synchronized String[] groupOf(FieldDescriptor field, ClassLoader loader) {
+		if (Config.objectGroupingOption.get() == Config.ObjectGrouping.OBJECT) {
+			return null;
+		}
+		ObjectTypeDescriptor type = field.getDeclaringType();
+		while (type != null && !type.equals(TypeDescriptor.OBJECT)) {
+			final HashMap<String,String> declared = declaredGroups(type, loader);
+			if (declared == null) {
+				return null;
+			}
+			final String group = declared.get(field.getFieldName());
+			if (group != null) {
+				return group == OBJECT_GROUP || !Filter.shouldInstrument(type) ? null : new String[] { type.getInternalName(), group };
+			}
+			type = superTypes.get(type);
+		}
+		return null;
+	}
+	
+	/**
+	 * Get the annotated groups declared in a class (for declaring their shadow fields).
+	 */
+	protected static synchronized HashMap<String,String> declaredGroups(final ObjectTypeDescriptor type, ClassLoader loader) {
+		if (table.containsKey(type)) {
+			return table.get(type);
+		}
+		final HashMap<String,String> declared = new HashMap<String,String>();
+		final InputStream in = loader == null ? ClassLoader.getSystemResourceAsStream(type.getInternalName() + ".class") 
+				: loader.getResourceAsStream(type.getInternalName() + ".class");
+		if (in == null) {
+			Assert.warn("Cannot find class %s while looking for shadow groups.  Using the object group.", type);
+			table.put(type, null);
+			return null;
+		}
+		try {
+			new ClassReader(in).accept(new EmptyVisitor() {
+				@Override
+				public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+					superTypes.put(type, superName == null ? null : TypeDescriptor.ofClass(superName));
+				}
+				@Override
+				public FieldVisitor visitField(int access, final String name, String desc, String signature, Object value) {
+					if ((access & Opcodes.ACC_STATIC) != 0) {
+						return null;
+					}
+					declared.put(name, OBJECT_GROUP);
+					return new EmptyVisitor() {
+						@Override
+						public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+							if (!desc.equals(ANNOTATION_DESC)) {
+								return null;
+							}
+							return new EmptyVisitor() {
+								@Override
+								public void visit(String key, Object value) {
+									declared.put(name, ((String)value).intern());
+								}
+							};
+						}
+					};
+				}
+			}, ClassReader.SKIP_CODE);
+		} catch (IOException e) {
+			Assert.fail(e);
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) { }
+		}
+		table.put(type, declared);
+		return declared;
+	}
+
+}
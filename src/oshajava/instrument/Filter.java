@@ -32,6 +32,7 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package oshajava.instrument;
 
+import oshajava.runtime.Config;
 import oshajava.spec.names.FieldDescriptor;
 import oshajava.spec.names.MethodDescriptor;
 import oshajava.spec.names.ObjectTypeDescriptor;
@@ -58,6 +59,18 @@ public class Filter {
     	CommandLine.makeStringMatcher("methods", StringMatchResult.ACCEPT, Kind.STABLE, 
     			"Only track memory operations in matching methods (by fully qulified name).");
     
+    public static final CommandLineOption<StringMatcher> untrackedOption =
+    	CommandLine.makeStringMatcher("untracked", StringMatchResult.NOTHING, Kind.EXPERIMENTAL, 
+    			"Do not track matching fields, fields of matching classes, or arrays allocated in matching methods (by fully qualified name).");
+
+    public static final CommandLineOption<StringMatcher> coarseOption =
+    	CommandLine.makeStringMatcher("coarse", StringMatchResult.NOTHING, Kind.EXPERIMENTAL, 
+    			"Track arrays allocated in matching methods (by fully qualified name) coarsely. Matching fields are tracked at object granularity once it is supported.");
+
+    public static final CommandLineOption<StringMatcher> fineOption =
+    	CommandLine.makeStringMatcher("fine", StringMatchResult.NOTHING, Kind.EXPERIMENTAL, 
+    			"Track matching fields, fields of matching classes, or arrays allocated in matching methods (by fully qualified name) at fine granularity.");
+
 	/**
      * Classes that are never allowed to be instrumented or remapped.
      */
@@ -97,7 +110,49 @@ public class Filter {
 	 * @return
 	 */
 	protected static boolean shouldInstrument(FieldDescriptor field) {
-		return shouldInstrument(field.getDeclaringType()) && instrumentFieldsOption.get().test(field.getSourceName()) == StringMatchResult.ACCEPT;
+		return shouldInstrument(field.getDeclaringType()) && instrumentFieldsOption.get().test(field.getSourceName()) == StringMatchResult.ACCEPT
+			&& granularity(field) != Config.Granularity.NONE;
+	}
+	
+	/**
+	 * Are any per-field or per-site granularity policies given?
+	 */
+	public static boolean hasPolicies() {
+		return !untrackedOption.get().isEmpty() || !coarseOption.get().isEmpty() || !fineOption.get().isEmpty();
+	}
+	
+	/**
+	 * The granularity policy for a field, or null to use the default.
+	 * Field names take precedence over class names.
+	 * @param field
+	 * @return
+	 */
+	protected static Config.Granularity granularity(FieldDescriptor field) {
+		final Config.Granularity g = granularity(field.getSourceName());
+		return g != null ? g : granularity(field.getDeclaringType().getSourceName());
+	}
+
+	/**
+	 * The granularity policy for arrays allocated in a method, or null to use the default.
+	 * Method names take precedence over class names.
+	 * @param site
+	 * @return
+	 */
+	protected static Config.Granularity granularity(MethodDescriptor site) {
+		final Config.Granularity g = granularity(site.getSourceName());
+		return g != null ? g : granularity(site.getClassType().getSourceName());
+	}
+	
+	private static Config.Granularity granularity(String name) {
+		if (untrackedOption.get().test(name) == StringMatchResult.ACCEPT) {
+			return Config.Granularity.NONE;
+		} else if (coarseOption.get().test(name) == StringMatchResult.ACCEPT) {
+			return Config.Granularity.COARSE;
+		} else if (fineOption.get().test(name) == StringMatchResult.ACCEPT) {
+			return Config.Granularity.FINE;
+		} else {
+			return null;
+		}
 	}
 	
 	/**
@@ -32,8 +32,10 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package oshajava.instrument;
 
+import java.util.BitSet;
 
 import oshajava.runtime.Config;
+import oshajava.runtime.InlineCache;
 import oshajava.spec.CompiledModuleSpec;
 import oshajava.spec.ModuleSpec;
 import oshajava.spec.ModuleSpec.CommunicationKind;
@@ -46,6 +48,8 @@ import oshajava.support.org.objectweb.asm.MethodVisitor;
 import oshajava.support.org.objectweb.asm.Opcodes;
 import oshajava.support.org.objectweb.asm.Type;
 import oshajava.support.org.objectweb.asm.commons.AdviceAdapter;
+import oshajava.support.org.objectweb.asm.commons.CodeSizeEvaluator;
+import oshajava.support.org.objectweb.asm.commons.Method;
 
 public class MethodInstrumentor extends AdviceAdapter {
 	
@@ -55,26 +59,68 @@ public class MethodInstrumentor extends AdviceAdapter {
 	protected final boolean isConstructor;
 	protected final boolean isClinit;
 	protected final boolean isStatic;
+	/**
+	 * Is this a check stub (-outlineChecks)? Stubs take the caller's thread,
+	 * state and writer cache as their last three arguments.
+	 */
+	protected final boolean isStub;
 	protected final MethodDescriptor method;
+	protected final ClassInstrumentor instrumentor;
+	protected final ClassLoader loader;
 	private int methodUID;
 	
+	/**
+	 * Granularity policy for arrays allocated here, or null for the default.
+	 */
+	protected final Config.Granularity arrayPolicy;
+	
 //	protected final int accessFlags;
 	
 	protected CommunicationKind policy;
 	
 	protected int myMaxStackAdditions = 0;
+	
+	/**
+	 * Field instructions (numbered in code order) whose checks are redundant
+	 * (-elideRedundantChecks), and the number of field instructions seen so far.
+	 */
+	private BitSet redundantFieldInsns;
+	private int fieldInsns = 0;
+	
+	/**
+	 * Array element instructions (numbered in code order) checked by loop range
+	 * hooks instead (-coarsenArrayLoops), and the number seen so far.
+	 */
+	private BitSet coarsenedArrayInsns;
+	private int arrayInsns = 0;
+	
+	/**
+	 * Field instructions (numbered in code order) inserted by an ArrayLoopCoarsener
+	 * to compute its ranges, which are not the program's accesses.
+	 */
+	private BitSet loopRangeFieldInsns;
+	
+	/**
+	 * Size of the instrumented code so far, for -outlineChecks=OVER_BUDGET.
+	 */
+	private CodeSizeEvaluator codeSize;
 
 	protected int originalMaxLocals = UNINITIALIZED, originalMaxStack = UNINITIALIZED;
 	
-	public MethodInstrumentor(MethodVisitor next, int access, String name, String desc, ModuleSpec module, MethodDescriptor methodDescriptor) {
+	public MethodInstrumentor(MethodVisitor next, int access, String name, String desc, ModuleSpec module, MethodDescriptor methodDescriptor,
+			ClassInstrumentor instrumentor) {
 		super(next, access, name, desc);
+		this.instrumentor = instrumentor;
+		this.loader = instrumentor.loader;
 //		this.accessFlags = access;
 		this.method = methodDescriptor;
 		this.isStatic = (access & Opcodes.ACC_STATIC) != 0;
+		this.isStub = false;
 		this.isMain = (access & Opcodes.ACC_PUBLIC ) != 0 && isStatic && name.equals("main") && desc.equals("([Ljava/lang/String;)V");
 		this.isSynchronized = (access & Opcodes.ACC_SYNCHRONIZED) != 0;
 		this.isConstructor = methodDescriptor.isConstructor();
 		this.isClinit = methodDescriptor.isClassInit();
+		this.arrayPolicy = Config.arrayTrackingOption.get() == Config.Granularity.FINE ? Filter.granularity(methodDescriptor) : null;
 		final boolean isSynthetic = (access & Opcodes.ACC_SYNTHETIC) != 0;
 				
 		try { // FIXME  Centralize/unify handling of synthetics, missing methods, etc.
@@ -102,6 +148,26 @@ public class MethodInstrumentor extends AdviceAdapter {
 		}
 	}
 
+	/**
+	 * Instrumentor for a check stub of instrumentor's class. The stub belongs
+	 * to no module and runs in its caller's frame.
+	 */
+	protected MethodInstrumentor(MethodVisitor next, int access, String name, String desc, ClassInstrumentor instrumentor) {
+		super(next, access, name, desc);
+		this.instrumentor = instrumentor;
+		this.loader = instrumentor.loader;
+		this.method = MethodDescriptor.of(instrumentor.classType, name, desc, null);
+		this.isStatic = true;
+		this.isStub = true;
+		this.isMain = false;
+		this.isSynchronized = false;
+		this.isConstructor = false;
+		this.isClinit = false;
+		this.arrayPolicy = null;
+		this.methodUID = -1;
+		this.policy = CommunicationKind.INLINE;
+	}
+
 	protected void myStackSize(int size) {
 		if (size > myMaxStackAdditions) {
 			myMaxStackAdditions = size;
@@ -151,7 +217,16 @@ public class MethodInstrumentor extends AdviceAdapter {
 	}
 
 	protected void initializeStateAndCacheVars() {
-		if (policy != CommunicationKind.UNCHECKED) {
+		if (policy != CommunicationKind.UNCHECKED && Config.lazyStacksOption.get()) {
+			myStackSize(1);
+			// Both are loaded on first use. See materializeState.
+			varCurrentState  = super.newLocal(ClassInstrumentor.STATE_TYPE);
+			super.visitInsn(Opcodes.ACONST_NULL);
+			super.storeLocal(varCurrentState, ClassInstrumentor.STATE_TYPE);
+			varWriterCache  = super.newLocal(ClassInstrumentor.WRITER_CACHE_TYPE);
+			super.visitInsn(Opcodes.ACONST_NULL);
+			super.storeLocal(varWriterCache, ClassInstrumentor.WRITER_CACHE_TYPE);
+		} else if (policy != CommunicationKind.UNCHECKED) {
 			myStackSize(1);
 			// LOAD STATE -----------------
 			varCurrentState  = super.newLocal(ClassInstrumentor.STATE_TYPE);
@@ -162,15 +237,15 @@ public class MethodInstrumentor extends AdviceAdapter {
 			// stack ->
 			super.storeLocal(varCurrentState, ClassInstrumentor.STATE_TYPE);
 			// LOAD WRITER CACHE -----------
-			varWriterCache  = super.newLocal(ClassInstrumentor.BIT_VECTOR_INT_SET_TYPE);
+			varWriterCache  = super.newLocal(ClassInstrumentor.WRITER_CACHE_TYPE);
 			// stack -> state
 			pushCurrentState();
 			// stack -> stack
 			super.getField(ClassInstrumentor.STATE_TYPE, ClassInstrumentor.STACK_FIELD, ClassInstrumentor.STACK_TYPE);
 			// stack -> cache
-			super.getField(ClassInstrumentor.STACK_TYPE, ClassInstrumentor.WRITER_CACHE_FIELD, ClassInstrumentor.BIT_VECTOR_INT_SET_TYPE);
+			super.getField(ClassInstrumentor.STACK_TYPE, ClassInstrumentor.WRITER_CACHE_FIELD, ClassInstrumentor.WRITER_CACHE_TYPE);
 			// stack ->
-			super.storeLocal(varWriterCache, ClassInstrumentor.BIT_VECTOR_INT_SET_TYPE);
+			super.storeLocal(varWriterCache, ClassInstrumentor.WRITER_CACHE_TYPE);
 		}
 	}
 
@@ -181,6 +256,31 @@ public class MethodInstrumentor extends AdviceAdapter {
 		super.loadLocal(varCurrentThread, ClassInstrumentor.THREAD_STATE_TYPE);
 	}
 
+	/**
+	 * With -lazyStacks, get the State of the current frame from the runtime
+	 * and store it and its writer cache in their locals.
+	 */
+	private void materializeState() {
+		// stack == 
+		// stack -> threadstate
+		pushCurrentThread();
+		// stack -> state
+		super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_MATERIALIZE);
+		// stack -> state state
+		super.dup();
+		// stack -> state stack
+		super.getField(ClassInstrumentor.STATE_TYPE, ClassInstrumentor.STACK_FIELD, ClassInstrumentor.STACK_TYPE);
+		// stack -> state cache
+		super.getField(ClassInstrumentor.STACK_TYPE, ClassInstrumentor.WRITER_CACHE_FIELD, ClassInstrumentor.WRITER_CACHE_TYPE);
+		// stack -> state
+		super.storeLocal(varWriterCache, ClassInstrumentor.WRITER_CACHE_TYPE);
+		// stack -> state state
+		super.dup();
+		// stack -> state
+		super.storeLocal(varCurrentState, ClassInstrumentor.STATE_TYPE);
+		// stack == state
+	}
+
 	/**
 	 * Push the current state onto the stack.
 	 */
@@ -188,14 +288,42 @@ public class MethodInstrumentor extends AdviceAdapter {
 		// stack == 
 		// stack -> state
 		super.loadLocal(varCurrentState, ClassInstrumentor.STATE_TYPE);
+		if (Config.lazyStacksOption.get()) {
+			final Label loaded = super.newLabel();
+			// stack -> state state
+			super.dup();
+			// stack -> state
+			super.ifNonNull(loaded);
+			// not yet loaded. stack ->
+			super.pop();
+			// stack -> state
+			materializeState();
+			super.mark(loaded);
+		}
 		// stack == state
 	}
 	
 	protected void pushWriterCache() {
 		// stack == 
 		// stack -> cache
-		super.loadLocal(varWriterCache, ClassInstrumentor.BIT_VECTOR_INT_SET_TYPE);
-		// stack == ache
+		super.loadLocal(varWriterCache, ClassInstrumentor.WRITER_CACHE_TYPE);
+		if (Config.lazyStacksOption.get()) {
+			final Label loaded = super.newLabel();
+			// stack -> cache cache
+			super.dup();
+			// stack -> cache
+			super.ifNonNull(loaded);
+			// not yet loaded. stack ->
+			super.pop();
+			// stack -> state
+			materializeState();
+			// stack ->
+			super.pop();
+			// stack -> cache
+			super.loadLocal(varWriterCache, ClassInstrumentor.WRITER_CACHE_TYPE);
+			super.mark(loaded);
+		}
+		// stack == cache
 	}
 
 	/**
@@ -275,7 +403,7 @@ public class MethodInstrumentor extends AdviceAdapter {
 			}
 			pushCurrentThread();
 			// call release hook. stack ->
-			super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_RELEASE);
+			super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, isStatic ? ClassInstrumentor.HOOK_RELEASE : ClassInstrumentor.HOOK_RELEASE_HOLDER);
 		}
 		if (policy != CommunicationKind.INLINE) {
 			pushCurrentThread();
@@ -356,6 +484,20 @@ public class MethodInstrumentor extends AdviceAdapter {
 		super.visitCode();
 		myStackSize(1);
 		
+		if (isStub) {
+			// Copy the caller's thread, state and writer cache into locals.
+			final int first = Type.getArgumentTypes(methodDesc).length - 3;
+			varCurrentThread = super.newLocal(ClassInstrumentor.THREAD_STATE_TYPE);
+			super.loadArg(first);
+			super.storeLocal(varCurrentThread, ClassInstrumentor.THREAD_STATE_TYPE);
+			varCurrentState = super.newLocal(ClassInstrumentor.STATE_TYPE);
+			super.loadArg(first + 1);
+			super.storeLocal(varCurrentState, ClassInstrumentor.STATE_TYPE);
+			varWriterCache = super.newLocal(ClassInstrumentor.WRITER_CACHE_TYPE);
+			super.loadArg(first + 2);
+			super.storeLocal(varWriterCache, ClassInstrumentor.WRITER_CACHE_TYPE);
+			return;
+		}
 		if (policy != CommunicationKind.INLINE) {
 			super.push(methodUID);
 			// stack -> threadstate
@@ -378,8 +520,8 @@ public class MethodInstrumentor extends AdviceAdapter {
 			}
 			pushCurrentThread();
 			pushCurrentState();
-			// call acquire hook. stack ->
-			super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_ACQUIRE);
+			// call acquire hook. Instances of instrumented classes hold their own lock state. stack ->
+			super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, isStatic ? ClassInstrumentor.HOOK_ACQUIRE : ClassInstrumentor.HOOK_ACQUIRE_HOLDER);
 		}
 		// start try block. This block is used to catch any exception and call the
 		// exit hook for non-inlined methods and the release hook for syncrhonized methods.
@@ -403,7 +545,8 @@ public class MethodInstrumentor extends AdviceAdapter {
 			}
 
 			// -- end code -------------
-			super.visitMaxs(originalMaxStack + myMaxStackAdditions + 2, originalMaxLocals);
+			// -lazyStacks: materializeState may push 2 past whatever loaded the state.
+			super.visitMaxs(originalMaxStack + myMaxStackAdditions + 2 + (Config.lazyStacksOption.get() ? 2 : 0), originalMaxLocals);
 		}
 
 		super.visitEnd();
@@ -419,28 +562,127 @@ public class MethodInstrumentor extends AdviceAdapter {
 	public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {//TODO implement frames correctly
 	}
 	
+	/**
+	 * Set the field instructions that need no instrumentation, as found by a RedundantCheckAnalyzer.
+	 */
+	protected void setRedundantFieldInsns(BitSet redundant) {
+		redundantFieldInsns = redundant;
+	}
+	
+	/**
+	 * Set the array instructions that need no instrumentation, as found by an ArrayLoopCoarsener.
+	 */
+	protected void setCoarsenedArrayInsns(BitSet coarsened) {
+		coarsenedArrayInsns = coarsened;
+	}
+	
+	/**
+	 * Set the field instructions an ArrayLoopCoarsener inserted.
+	 */
+	protected void setLoopRangeFieldInsns(BitSet inserted) {
+		loopRangeFieldInsns = inserted;
+	}
+	
+	/**
+	 * Get the field instructions an ArrayLoopCoarsener inserted, or null if none has run.
+	 */
+	protected BitSet getLoopRangeFieldInsns() {
+		return loopRangeFieldInsns;
+	}
+	
+	/**
+	 * Set the evaluator measuring this method's instrumented code (-outlineChecks=OVER_BUDGET).
+	 */
+	protected void setCodeSize(CodeSizeEvaluator codeSize) {
+		this.codeSize = codeSize;
+	}
+	
+	/**
+	 * Should the check of a field read call a check stub instead of being inlined?
+	 */
+	private boolean outline(int opcode) {
+		if (isStub || (opcode != Opcodes.GETFIELD && opcode != Opcodes.GETSTATIC)) {
+			return false;
+		}
+		switch (Config.outlineChecksOption.get()) {
+		case ALL:
+			return true;
+		case OVER_BUDGET:
+			return codeSize != null && codeSize.getMaxSize() > Config.outlineBudgetOption.get();
+		default:
+			return false;
+		}
+	}
+	
+	/**
+	 * Generate the body of this check stub: the check of a read of the given
+	 * field, without the read itself.
+	 */
+	protected void generateCheckStub(int opcode, String owner, String name, String desc) {
+		visitCode();
+		if (opcode == Opcodes.GETFIELD) {
+			// stack -> obj
+			super.loadArg(0);
+		}
+		visitFieldInsn(opcode, owner, name, desc);
+		visitInsn(Opcodes.RETURN);
+		visitMaxs(1, 0);
+		visitEnd();
+	}
+	
 	/**
 	 * Instrument accesses with read and write hooks.
 	 */
 	@Override
 	public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+		final boolean redundant = redundantFieldInsns != null && redundantFieldInsns.get(fieldInsns)
+				|| loopRangeFieldInsns != null && loopRangeFieldInsns.get(fieldInsns);
+		fieldInsns++;
 		FieldDescriptor field = FieldDescriptor.of(TypeDescriptor.ofClass(owner), name, TypeDescriptor.fromDescriptorString(desc));
-		if (Filter.shouldInstrument(field)) {
+		// Group shadows may be declared in a superclass, so they cannot be touched before
+		// super() returns. The object's shadows are initialized to the current state then anyway.
+		if (!redundant && Filter.shouldInstrument(field) && !(Config.objectTrackingOption.get() == Config.Granularity.NONE 
+				&& (opcode == Opcodes.PUTFIELD || opcode == Opcodes.GETFIELD))
+				&& !(isConstructor && !methodEntered && opcode == Opcodes.PUTFIELD && FieldGroups.isCoarse(field))) {
 
 			// TODO figure out how to add visitFrame where needed below (GOTOs) to
 			// avoid cost of computing the frames...?
 			//		Util.log("Visiting field ins: owner = " + owner + ", name = " + name + ", desc = " + desc);
-			final Type ownerType = Type.getType(ClassInstrumentor.getDescriptor(owner));
+			final Type ownerType;
 			final String stateFieldName;
             final String stacktraceFieldName;
-			if (Config.objectTrackingOption.get() == Config.Granularity.COARSE && (opcode == Opcodes.PUTFIELD || opcode == Opcodes.GETFIELD)){
-				stateFieldName = ClassInstrumentor.SHADOW_FIELD_SUFFIX;
-				stacktraceFieldName = ClassInstrumentor.STACKTRACE_FIELD_SUFFIX;
+            final boolean coarse = (opcode == Opcodes.PUTFIELD || opcode == Opcodes.GETFIELD) && FieldGroups.isCoarse(field);
+			if (coarse) {
+				// Group shadow: in the declaring class for annotated groups, inherited from the root otherwise.
+				final String[] group = FieldGroups.groupOf(field, loader);
+				ownerType = Type.getType(ClassInstrumentor.getDescriptor(group == null ? owner : group[0]));
+				stateFieldName = FieldGroups.shadowFieldName(group == null ? FieldGroups.OBJECT_GROUP : group[1]);
+				stacktraceFieldName = FieldGroups.stackTraceFieldName(group == null ? FieldGroups.OBJECT_GROUP : group[1]);
 			} else {
+				ownerType = Type.getType(ClassInstrumentor.getDescriptor(owner));
 				stateFieldName = name + ClassInstrumentor.SHADOW_FIELD_SUFFIX;
 				stacktraceFieldName = name + ClassInstrumentor.STACKTRACE_FIELD_SUFFIX;
 			}
-			switch(opcode) {
+			// With -objectGrouping=AUTO, group shadows split per object on conflicting writes.
+			final boolean split = coarse && Config.objectGroupingOption.get() == Config.ObjectGrouping.AUTO;
+			// Per-field shadows may be packed. Coarse group shadows are always States.
+			final boolean packed = Config.packedShadowsOption.get() && !coarse;
+			if (outline(opcode)) {
+				final Method stub = instrumentor.checkStub(opcode, owner, name, desc);
+				myStackSize(4);
+				if (opcode == Opcodes.GETFIELD) {
+					// stack -> obj | obj
+					super.dup();
+				}
+				// stack -> [obj |] [obj] thread state cache
+				pushCurrentThread();
+				pushCurrentState();
+				pushWriterCache();
+				// stack -> [obj |]
+				super.invokeStatic(method.getClassType().getAsmType(), stub);
+			} else if (packed) {
+				visitPackedFieldInsn(opcode, field, ownerType, stateFieldName, stacktraceFieldName, Type.getType(desc));
+			} else switch(opcode) {
 			case Opcodes.PUTFIELD:
 				myStackSize(2);
 				final Type fieldType = Type.getType(desc);				
@@ -450,10 +692,57 @@ public class MethodInstrumentor extends AdviceAdapter {
 				// dup the target. stack -> value obj | obj
 				super.dup();
 				
-				// push the current state on the stack. stack -> value obj | obj state
-				pushCurrentState();
-				// store the new state. stack -> value obj | 
-				super.putField(ownerType, stateFieldName, ClassInstrumentor.STATE_TYPE);
+				if (split) {
+					myStackSize(6);
+					final Label same = super.newLabel(), stored = super.newLabel();
+					// stack -> value obj | obj obj obj
+					super.dup();
+					super.dup();
+					// stack -> value obj | obj obj old
+					super.getField(ownerType, stateFieldName, ClassInstrumentor.STATE_TYPE);
+					// stack -> value obj | obj obj old old state
+					super.dup();
+					pushCurrentState();
+					// Nothing to do if the group was last written in this state. stack -> value obj | obj obj old
+					super.ifCmp(ClassInstrumentor.STATE_TYPE, EQ, same);
+					// stack -> value obj | obj obj old state name group
+					pushCurrentState();
+					super.push(field.getSourceName());
+					super.push(stateFieldName);
+					// stack -> value obj | obj new
+					super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_COARSE_FIELD_WRITE);
+					// stack -> value obj | 
+					super.putField(ownerType, stateFieldName, ClassInstrumentor.STATE_TYPE);
+					super.goTo(stored);
+					super.mark(same);
+					// stack -> value obj | 
+					super.pop2();
+					super.pop();
+					super.mark(stored);
+				} else if (Config.elideSameStateWritesOption.get()) {
+					myStackSize(3);
+					final Label same = super.newLabel(), stored = super.newLabel();
+					// stack -> value obj | obj old
+					super.dup();
+					super.getField(ownerType, stateFieldName, ClassInstrumentor.STATE_TYPE);
+					// Leave the shadow untouched if it already holds the current state. stack -> value obj | obj
+					pushCurrentState();
+					super.ifCmp(ClassInstrumentor.STATE_TYPE, EQ, same);
+					// stack -> value obj | obj state
+					pushCurrentState();
+					// stack -> value obj | 
+					super.putField(ownerType, stateFieldName, ClassInstrumentor.STATE_TYPE);
+					super.goTo(stored);
+					super.mark(same);
+					// stack -> value obj | 
+					super.pop();
+					super.mark(stored);
+				} else {
+					// push the current state on the stack. stack -> value obj | obj state
+					pushCurrentState();
+					// store the new state. stack -> value obj | 
+					super.putField(ownerType, stateFieldName, ClassInstrumentor.STATE_TYPE);
+				}
 				
 				// Save stack trace if requested.
 				if (Config.stackTracesOption.get()) {
@@ -469,12 +758,24 @@ public class MethodInstrumentor extends AdviceAdapter {
 				super.swap(fieldType,  ClassInstrumentor.OBJECT_TYPE);
 				break;
 			case Opcodes.PUTSTATIC:
-				myStackSize(1);
-				
-				// get the current state. stack -> state
-				pushCurrentState();
-				// store the new state. stack -> 
-				super.putStatic(ownerType, stateFieldName, ClassInstrumentor.STATE_TYPE);
+				if (Config.elideSameStateWritesOption.get()) {
+					myStackSize(2);
+					final Label same = super.newLabel();
+					// stack -> old state
+					super.getStatic(ownerType, stateFieldName, ClassInstrumentor.STATE_TYPE);
+					pushCurrentState();
+					// Leave the shadow untouched if it already holds the current state. stack -> 
+					super.ifCmp(ClassInstrumentor.STATE_TYPE, EQ, same);
+					pushCurrentState();
+					super.putStatic(ownerType, stateFieldName, ClassInstrumentor.STATE_TYPE);
+					super.mark(same);
+				} else {
+					myStackSize(1);
+					// get the current state. stack -> state
+					pushCurrentState();
+					// store the new state. stack -> 
+					super.putStatic(ownerType, stateFieldName, ClassInstrumentor.STATE_TYPE);
+				}
 				
 				// Save stack trace if requested.
 				if (Config.stackTracesOption.get()) {
@@ -488,6 +789,7 @@ public class MethodInstrumentor extends AdviceAdapter {
 			case Opcodes.GETFIELD:
 				myStackSize(4);
 				Label homeFree = super.newLabel();
+				Label ok = super.newLabel();
 				int traceVar = UNINITIALIZED;
 				// Store the stack trace if requested.
 				if (Config.stackTracesOption.get()) {
@@ -525,6 +827,25 @@ public class MethodInstrumentor extends AdviceAdapter {
 				if (Config.profileOption.get() == Config.ProfileLevel.DEEP) {
 					super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_COUNT_COMM);
 				}
+				if (split) {
+					final Label notSplit = super.newLabel();
+					// stack -> obj | state state SPLIT
+					super.dup();
+					super.getStatic(ClassInstrumentor.STATE_TYPE, ClassInstrumentor.SPLIT_STATE_FIELD, ClassInstrumentor.STATE_TYPE);
+					// stack -> obj | state
+					super.ifCmp(ClassInstrumentor.STATE_TYPE, NE, notSplit);
+					// Split object: per-field states are in the runtime. stack -> obj | obj readerState name group
+					super.pop();
+					super.dup();
+					pushCurrentState();
+					super.push(field.getSourceName());
+					super.push(stateFieldName);
+					// stack -> obj |
+					super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_SPLIT_FIELD_READ);
+					super.goTo(ok);
+					super.mark(notSplit);
+				}
+				final String ic = inlineCacheCheck(field, homeFree);
 				// stack -> obj | state state    <------ TODO maybe don't dup and just reload from field later if needed.
 				super.dup();
 				// stack -> obj | state state cache
@@ -534,9 +855,9 @@ public class MethodInstrumentor extends AdviceAdapter {
 				// stack -> obj | state cache stackID
 				super.invokeVirtual(ClassInstrumentor.STATE_TYPE, ClassInstrumentor.STATE_STACK_ID);
 				// stack -> obj | state boolean
-				super.invokeVirtual(ClassInstrumentor.BIT_VECTOR_INT_SET_TYPE, ClassInstrumentor.CONTAINS_METHOD);
+				super.invokeVirtual(ClassInstrumentor.WRITER_CACHE_TYPE, ClassInstrumentor.CONTAINS_METHOD);
 				// stack -> obj | state
-				super.ifZCmp(NE, homeFree); // if that succeeded, we're done, else do heavier check.
+				ifValidatedGoto(ic, homeFree); // if that succeeded, we're done, else do heavier check.
 				
 				// End Fairly Fast Path
 				
@@ -556,14 +877,13 @@ public class MethodInstrumentor extends AdviceAdapter {
 				
 				// END SLOW PATH
 				
-				Label ok = super.newLabel();
 				super.goTo(ok);
 				super.mark(homeFree);
 				super.pop();
 				super.mark(ok);
 				break;
 			case Opcodes.GETSTATIC:
-				myStackSize(3);
+				myStackSize(Config.inlineCachesOption.get() ? 4 : 3);
 				Label sHomeFree = super.newLabel();
 				// if profiling, count the read! SLOOOOOOW
 				if (Config.profileOption.get() == Config.ProfileLevel.DEEP) {
@@ -590,6 +910,7 @@ public class MethodInstrumentor extends AdviceAdapter {
 				if (Config.profileOption.get() == Config.ProfileLevel.DEEP) {
 					super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_COUNT_COMM);
 				}
+				final String sIc = inlineCacheCheck(field, sHomeFree);
 				// stack -> state state    <------ TODO maybe don't dup and just reload from field later if needed.
 				super.dup();
 				// stack -> state state cache
@@ -599,9 +920,9 @@ public class MethodInstrumentor extends AdviceAdapter {
 				// stack -> state cache stackID
 				super.invokeVirtual(ClassInstrumentor.STATE_TYPE, ClassInstrumentor.STATE_STACK_ID);
 				// stack -> state boolean
-				super.invokeVirtual(ClassInstrumentor.BIT_VECTOR_INT_SET_TYPE, ClassInstrumentor.CONTAINS_METHOD);
+				super.invokeVirtual(ClassInstrumentor.WRITER_CACHE_TYPE, ClassInstrumentor.CONTAINS_METHOD);
 				// stack -> state
-				super.ifZCmp(NE, sHomeFree); // if that succeeded, we're done, else do heavier check.
+				ifValidatedGoto(sIc, sHomeFree); // if that succeeded, we're done, else do heavier check.
 				
 				// End Fairly Fast Path
 				
@@ -631,13 +952,274 @@ public class MethodInstrumentor extends AdviceAdapter {
 			// END
 		}
 
-		// Do the actual op.
-		super.visitFieldInsn(opcode, owner, name, desc);
+		if (isStub) {
+			// The caller does the actual op.
+			if (opcode == Opcodes.GETFIELD) {
+				super.pop();
+			}
+		} else {
+			// Do the actual op.
+			super.visitFieldInsn(opcode, owner, name, desc);
+		}
+	}
+	
+	/**
+	 * Check this read site's inline cache (-inlineCaches), if it gets one.
+	 * Jumps to hit if the writer state on the stack and the current state
+	 * are the pair the site last validated.
+	 * 
+	 * stack == state, and state after and at hit.
+	 * 
+	 * @return the site's inline cache field, or null if none.
+	 */
+	private String inlineCacheCheck(final FieldDescriptor field, final Label hit) {
+		final String ic = instrumentor.newInlineCache();
+		if (ic == null) {
+			return null;
+		}
+		final int site = Config.profileOption.get() == Config.ProfileLevel.DEEP ? 
+				InlineCache.register(method.getSourceName() + " reads " + field.getSourceName()) : -1;
+		final Label empty = super.newLabel(), wrongWriter = super.newLabel(), miss = super.newLabel();
+		// stack -> state state ic
+		super.dup();
+		super.getStatic(method.getClassType().getAsmType(), ic, ClassInstrumentor.INLINE_CACHE_TYPE);
+		// stack -> state state ic ic -> state state ic
+		super.dup();
+		super.ifNull(empty);
+		// stack -> state ic state writer
+		super.dupX1();
+		super.getField(ClassInstrumentor.INLINE_CACHE_TYPE, "writer", ClassInstrumentor.STATE_TYPE);
+		// stack -> state ic
+		super.ifCmp(ClassInstrumentor.STATE_TYPE, NE, wrongWriter);
+		// stack -> state reader currentState
+		super.getField(ClassInstrumentor.INLINE_CACHE_TYPE, "reader", ClassInstrumentor.STATE_TYPE);
+		pushCurrentState();
+		// stack -> state
+		super.ifCmp(ClassInstrumentor.STATE_TYPE, NE, miss);
+		if (site >= 0) {
+			super.push(site);
+			super.invokeStatic(ClassInstrumentor.INLINE_CACHE_TYPE, ClassInstrumentor.HOOK_IC_HIT);
+		}
+		super.goTo(hit);
+		super.mark(empty);
+		// stack -> state
+		super.pop2();
+		super.goTo(miss);
+		super.mark(wrongWriter);
+		// stack -> state
+		super.pop();
+		super.mark(miss);
+		if (site >= 0) {
+			super.push(site);
+			super.invokeStatic(ClassInstrumentor.INLINE_CACHE_TYPE, ClassInstrumentor.HOOK_IC_MISS);
+		}
+		return ic;
+	}
+	
+	/**
+	 * Jump to validated if the writer cache test on the stack succeeded,
+	 * recording the validated pair in the site's inline cache ic, if any.
+	 * 
+	 * stack == state boolean, and state after and at validated.
+	 */
+	private void ifValidatedGoto(final String ic, final Label validated) {
+		if (ic == null) {
+			super.ifZCmp(NE, validated);
+			return;
+		}
+		final Label notValidated = super.newLabel();
+		// stack -> state
+		super.ifZCmp(EQ, notValidated);
+		// stack -> state state currentState -> state ic
+		super.dup();
+		pushCurrentState();
+		super.invokeStatic(ClassInstrumentor.INLINE_CACHE_TYPE, ClassInstrumentor.HOOK_IC_VALIDATED);
+		// stack -> state
+		super.putStatic(method.getClassType().getAsmType(), ic, ClassInstrumentor.INLINE_CACHE_TYPE);
+		super.goTo(validated);
+		super.mark(notValidated);
+	}
+	
+	/**
+	 * Local for the shadow word being checked (-packedShadows).
+	 */
+	private int varShadowWord = UNINITIALIZED;
+	
+	/**
+	 * Instrument a field access with packed shadow words (-packedShadows).
+	 * The same-thread and writer cache tests work on the word's halves
+	 * directly, without loading the writer's State.
+	 */
+	private void visitPackedFieldInsn(final int opcode, final FieldDescriptor field, final Type ownerType, 
+			final String stateFieldName, final String stacktraceFieldName, final Type fieldType) {
+		switch (opcode) {
+		case Opcodes.PUTFIELD:
+			myStackSize(3);
+			// stack == obj value |
+			// swap (may push 2 past the bar temporarily). stack -> value obj |   
+			super.swap(ClassInstrumentor.OBJECT_TYPE, fieldType);
+			// dup the target. stack -> value obj | obj
+			super.dup();
+			if (Config.elideSameStateWritesOption.get()) {
+				myStackSize(5);
+				final Label same = super.newLabel(), stored = super.newLabel();
+				// stack -> value obj | obj old word
+				super.dup();
+				super.getField(ownerType, stateFieldName, Type.LONG_TYPE);
+				pushCurrentState();
+				super.getField(ClassInstrumentor.STATE_TYPE, ClassInstrumentor.WORD_FIELD, Type.LONG_TYPE);
+				// Leave the shadow untouched if it already holds the current word. stack -> value obj | obj
+				super.ifCmp(Type.LONG_TYPE, EQ, same);
+				// stack -> value obj | obj word
+				pushCurrentState();
+				super.getField(ClassInstrumentor.STATE_TYPE, ClassInstrumentor.WORD_FIELD, Type.LONG_TYPE);
+				// stack -> value obj | 
+				super.putField(ownerType, stateFieldName, Type.LONG_TYPE);
+				super.goTo(stored);
+				super.mark(same);
+				// stack -> value obj | 
+				super.pop();
+				super.mark(stored);
+			} else {
+				// push the current word. stack -> value obj | obj word
+				pushCurrentState();
+				super.getField(ClassInstrumentor.STATE_TYPE, ClassInstrumentor.WORD_FIELD, Type.LONG_TYPE);
+				// store the new word. stack -> value obj | 
+				super.putField(ownerType, stateFieldName, Type.LONG_TYPE);
+			}
+			// Save stack trace if requested.
+			if (Config.stackTracesOption.get()) {
+				// stack -> value obj | obj trace
+				super.dup();
+				getStackTrace();
+				// stack -> value obj |
+				super.putField(ownerType, stacktraceFieldName, ClassInstrumentor.STACKTRACE_TYPE);
+			}
+			// swap back (may push 2 past the bar temporarily). stack -> obj value |
+			super.swap(fieldType,  ClassInstrumentor.OBJECT_TYPE);
+			return;
+		case Opcodes.PUTSTATIC:
+			if (Config.elideSameStateWritesOption.get()) {
+				myStackSize(4);
+				final Label same = super.newLabel();
+				// stack -> old word
+				super.getStatic(ownerType, stateFieldName, Type.LONG_TYPE);
+				pushCurrentState();
+				super.getField(ClassInstrumentor.STATE_TYPE, ClassInstrumentor.WORD_FIELD, Type.LONG_TYPE);
+				// Leave the shadow untouched if it already holds the current word. stack -> 
+				super.ifCmp(Type.LONG_TYPE, EQ, same);
+				pushCurrentState();
+				super.getField(ClassInstrumentor.STATE_TYPE, ClassInstrumentor.WORD_FIELD, Type.LONG_TYPE);
+				super.putStatic(ownerType, stateFieldName, Type.LONG_TYPE);
+				super.mark(same);
+			} else {
+				myStackSize(2);
+				// stack -> word
+				pushCurrentState();
+				super.getField(ClassInstrumentor.STATE_TYPE, ClassInstrumentor.WORD_FIELD, Type.LONG_TYPE);
+				// stack -> 
+				super.putStatic(ownerType, stateFieldName, Type.LONG_TYPE);
+			}
+			if (Config.stackTracesOption.get()) {
+			    getStackTrace();
+        		super.putStatic(ownerType, stacktraceFieldName, ClassInstrumentor.STACKTRACE_TYPE);
+			}
+			return;
+		}
+		
+		// GETFIELD, GETSTATIC
+		final boolean isStatic = opcode == Opcodes.GETSTATIC;
+		myStackSize(4);
+		final Label homeFree = super.newLabel();
+		int traceVar = UNINITIALIZED;
+		if (Config.stackTracesOption.get()) {
+		    traceVar = super.newLocal(ClassInstrumentor.STACKTRACE_TYPE);
+		    if (isStatic) {
+		    	// stack -> trace
+		    	super.getStatic(ownerType, stacktraceFieldName, ClassInstrumentor.STACKTRACE_TYPE);
+		    } else {
+		    	// stack -> obj | obj trace
+		    	super.dup();
+		    	super.getField(ownerType, stacktraceFieldName, ClassInstrumentor.STACKTRACE_TYPE);
+		    }
+		    super.storeLocal(traceVar);
+	    }
+		// if profiling, count the read! SLOOOOOOW
+		if (Config.profileOption.get() == Config.ProfileLevel.DEEP) {
+			super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_COUNT_READ);
+		}
+		if (varShadowWord == UNINITIALIZED) {
+			varShadowWord = super.newLocal(Type.LONG_TYPE);
+		}
+		// Get the word for this field. stack -> [obj |] word
+		if (isStatic) {
+			super.getStatic(ownerType, stateFieldName, Type.LONG_TYPE);
+		} else {
+			super.dup();
+			super.getField(ownerType, stateFieldName, Type.LONG_TYPE);
+		}
+		// stack -> [obj |]
+		super.storeLocal(varShadowWord, Type.LONG_TYPE);
+		
+		// IF INTER-THREAD ONLY -----------
+		if (!Config.intraThreadOption.get()) {
+			// stack -> writerThreadID
+			super.loadLocal(varShadowWord, Type.LONG_TYPE);
+			super.push(32);
+			super.math(USHR, Type.LONG_TYPE);
+			super.cast(Type.LONG_TYPE, Type.INT_TYPE);
+			// stack -> writerThreadID currentThreadID
+			pushCurrentThread();
+			super.getField(ClassInstrumentor.THREAD_STATE_TYPE, ClassInstrumentor.ID_FIELD, Type.INT_TYPE);
+			// FAST PATH if same thread we're done, else check stacks. stack ->
+			super.ifICmp(EQ, homeFree);
+		}
+		// END IF INTER-THREAD ONLY -------
+		
+		// Fairly Fast Path
+		
+		// if profiling, count the communication! SLOW
+		if (Config.profileOption.get() == Config.ProfileLevel.DEEP) {
+			super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_COUNT_COMM);
+		}
+		// stack -> cache
+		pushWriterCache();
+		// stack -> cache serial
+		super.loadLocal(varShadowWord, Type.LONG_TYPE);
+		super.cast(Type.LONG_TYPE, Type.INT_TYPE);
+		// stack -> boolean
+		super.invokeVirtual(ClassInstrumentor.WRITER_CACHE_TYPE, ClassInstrumentor.CONTAINS_METHOD);
+		// stack ->
+		super.ifZCmp(NE, homeFree); // if that succeeded, we're done, else do heavier check.
+		
+		// SLOW PATH
+		
+		// stack -> word readerState name [trace]
+		super.loadLocal(varShadowWord, Type.LONG_TYPE);
+		pushCurrentState();
+		super.push(field.getSourceName());
+		if (Config.stackTracesOption.get()) {
+		    super.loadLocal(traceVar);
+		}
+		// call the read hook. stack -> 
+		super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, (Config.stackTracesOption.get() ? 
+				ClassInstrumentor.HOOK_PACKED_READ_STACK_TRACE : ClassInstrumentor.HOOK_PACKED_READ));
+		
+		super.mark(homeFree);
 	}
 
 
 	@Override
 	public void visitInsn(int opcode) { 
+		if (ArrayLoopCoarsener.isArrayAccess(opcode)) {
+			final boolean coarsened = coarsenedArrayInsns != null && coarsenedArrayInsns.get(arrayInsns);
+			arrayInsns++;
+			if (coarsened) {
+				// Checked by the range hooks around its loop.
+				super.visitInsn(opcode);
+				return;
+			}
+		}
 		switch (opcode) {
 		case Opcodes.AALOAD:
 		case Opcodes.BALOAD:
@@ -770,6 +1352,45 @@ public class MethodInstrumentor extends AdviceAdapter {
 		}
 	}
 	
+	@Override
+	public void visitIntInsn(int opcode, int operand) {
+		super.visitIntInsn(opcode, operand);
+		if (opcode == Opcodes.NEWARRAY) {
+			newArrayHook();
+		}
+	}
+
+	@Override
+	public void visitTypeInsn(int opcode, String type) {
+		super.visitTypeInsn(opcode, type);
+		if (opcode == Opcodes.ANEWARRAY) {
+			newArrayHook();
+		}
+	}
+
+	@Override
+	public void visitMultiANewArrayInsn(String desc, int dims) {
+		super.visitMultiANewArrayInsn(desc, dims);
+		// Only the outermost array gets this site's policy.
+		newArrayHook();
+	}
+	
+	/**
+	 * Register the new array on top of the stack with this site's granularity policy.
+	 */
+	private void newArrayHook() {
+		if (arrayPolicy != null) {
+			myStackSize(3);
+			// stack -> array array
+			super.dup();
+			// stack -> array array granularity threadstate
+			super.push(arrayPolicy.ordinal());
+			pushCurrentThread();
+			// stack -> array
+			super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_NEW_ARRAY);
+		}
+	}
+	
 	@Override
 	public void visitVarInsn(int opcode, int var) {
 		if (opcode == Opcodes.RET) {
@@ -801,12 +1422,23 @@ public class MethodInstrumentor extends AdviceAdapter {
 		methodEntered = true;
 	}
 	
-	private static final MethodDescriptor WAIT = MethodDescriptor.of(TypeDescriptor.OBJECT, "wait", "()V", null),
-		WAIT_MILLIS = MethodDescriptor.of(TypeDescriptor.OBJECT, "wait", "(J)V", null),
-		WAIT_MILLIS_NANOS = MethodDescriptor.of(TypeDescriptor.OBJECT, "wait", "(JI)V", null);
+	private static final String WAIT_DESC = "()V", WAIT_MILLIS_DESC = "(J)V", WAIT_MILLIS_NANOS_DESC = "(JI)V";
 
 	@Override
 	public void visitMethodInsn(int opcode, String owner, String name, String desc) {
+		if (owner.equals(ClassInstrumentor.RUNTIME_MONITOR_TYPE.getInternalName()) 
+				&& desc.equals(ClassInstrumentor.LOOP_RANGE_LOAD.getDescriptor())) {
+			// Range hook placed by an ArrayLoopCoarsener. stack -> array from to | 
+			myStackSize(2);
+			if (name.equals(ClassInstrumentor.LOOP_RANGE_LOAD.getName())) {
+				pushArrayRangeReadArgs();
+				super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_ARRAY_RANGE_LOAD);
+			} else {
+				pushArrayRangeWriteArgs();
+				super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_ARRAY_RANGE_STORE);
+			}
+			return;
+		}
 		MethodDescriptor invokedMethod = MethodDescriptor.of(TypeDescriptor.ofClass(owner), name, desc, null);
 	    if (isConstructor && !methodEntered && opcode == Opcodes.INVOKESPECIAL && name.equals("<init>")
 	    		&& ( method.getClassType().getInternalName().equals(owner) || method.getClassType().getSuperType().getInternalName().equals(owner))) {
@@ -825,22 +1457,19 @@ public class MethodInstrumentor extends AdviceAdapter {
 			}
 		}
 	    	    
-		if (isConstructor && method.getClassType().getSuperType().equals(ClassInstrumentor.OBJECT_WITH_STATE) 
-				&& opcode == Opcodes.INVOKESPECIAL && invokedMethod.getClassType().equals(TypeDescriptor.OBJECT) && name.equals("<init>")) {
-			// Shim in object-granularity tracking.
-		    super.visitMethodInsn(opcode, ClassInstrumentor.OBJECT_WITH_STATE.getInternalName(), name, desc);
-		    return;
-		} else if (Config.lockTrackingOption.get() && opcode == Opcodes.INVOKEVIRTUAL && invokedMethod.getClassType().equals(TypeDescriptor.OBJECT) && name.equals("wait")) {
+		// Object.wait is final, so any wait() with its descriptors is Object.wait, whatever the named owner.
+		if (Config.lockTrackingOption.get() && opcode == Opcodes.INVOKEVIRTUAL && name.equals("wait") 
+				&& (desc.equals(WAIT_DESC) || desc.equals(WAIT_MILLIS_DESC) || desc.equals(WAIT_MILLIS_NANOS_DESC))) {
 		    myStackSize(3);
 		    
 		    // There are three forms of wait(). Put the arguments aside.
 		    final int longArg = super.newLocal(Type.LONG_TYPE);
 		    final int intArg = super.newLocal(Type.INT_TYPE);
-		    if (invokedMethod.getReturnType().equals(MethodInstrumentor.WAIT)) {
+		    if (desc.equals(WAIT_DESC)) {
 		        // No arguments. Do nothing.
-		    } else if (invokedMethod.getReturnType().equals(MethodInstrumentor.WAIT_MILLIS)) {
+		    } else if (desc.equals(WAIT_MILLIS_DESC)) {
 		        super.storeLocal(longArg);
-		    } else if (invokedMethod.getReturnType().equals(MethodInstrumentor.WAIT_MILLIS_NANOS)) {
+		    } else if (desc.equals(WAIT_MILLIS_NANOS_DESC)) {
 		        super.storeLocal(intArg);
 		        super.storeLocal(longArg);
 		    } else {
@@ -860,9 +1489,9 @@ public class MethodInstrumentor extends AdviceAdapter {
 			
 		    
 		    // Put the arguments back. stack -> lock depth lock ...
-		    if (desc.equals("(J)V")) {
+		    if (desc.equals(WAIT_MILLIS_DESC)) {
 		        super.loadLocal(longArg);
-		    } else if (desc.equals("(JI)V")) {    
+		    } else if (desc.equals(WAIT_MILLIS_NANOS_DESC)) {    
 		        super.loadLocal(longArg);
 		        super.loadLocal(intArg);
 		    }
@@ -876,10 +1505,145 @@ public class MethodInstrumentor extends AdviceAdapter {
 		    // stack -> 
 			super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_POSTWAIT);
 			return;
+		} else if (Config.arrayTrackingOption.get() != Config.Granularity.NONE && policy != CommunicationKind.UNCHECKED
+				&& visitBulkArrayInsn(opcode, owner, name, desc)) {
+			return;
 		} else {
 		    super.visitMethodInsn(opcode, invokedMethod.getClassType().getInternalName(), name, desc);
 		    return;
         }
 	}
+	
+	/**
+	 * Instrument a bulk array operation (System.arraycopy, Arrays.fill, Arrays.copyOf,
+	 * Arrays.copyOfRange, or array clone) with one range hook per array instead of
+	 * per-element hooks, which the (uninstrumented) library code would not call anyway.
+	 * Reads are checked before the call; writes are recorded only after it returns,
+	 * so a call that throws records none.
+	 * 
+	 * @return false if the call is not a bulk array operation, in which case nothing was emitted.
+	 */
+	private boolean visitBulkArrayInsn(int opcode, String owner, String name, String desc) {
+		final Type[] args = Type.getArgumentTypes(desc);
+		if (opcode == Opcodes.INVOKESTATIC && owner.equals("java/lang/System") && name.equals("arraycopy")) {
+			myStackSize(5);
+			// stack == src srcPos dest destPos length
+			final int[] locals = storeArguments(args);
+			// src [srcPos, srcPos + length)
+			pushRange(locals[0], locals[1], locals[4]);
+			pushArrayRangeReadArgs();
+			super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_ARRAY_RANGE_LOAD);
+			// stack -> src srcPos dest destPos length
+			loadArguments(args, locals);
+			super.visitMethodInsn(opcode, owner, name, desc);
+			// dest [destPos, destPos + length), once the copy has succeeded
+			pushRange(locals[2], locals[3], locals[4]);
+			pushArrayRangeWriteArgs();
+			super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_ARRAY_RANGE_STORE);
+		} else if (opcode == Opcodes.INVOKESTATIC && owner.equals("java/util/Arrays") && name.equals("fill")
+				&& args[0].getSort() == Type.ARRAY) {
+			myStackSize(5);
+			// stack == array [from to] value
+			final int[] locals = storeArguments(args);
+			loadArguments(args, locals);
+			super.visitMethodInsn(opcode, owner, name, desc);
+			// once the fill has succeeded
+			super.loadLocal(locals[0]);
+			if (args.length == 2) {
+				// whole array
+				super.push(0);
+				super.push(Integer.MAX_VALUE);
+			} else {
+				super.loadLocal(locals[1]);
+				super.loadLocal(locals[2]);
+			}
+			pushArrayRangeWriteArgs();
+			super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_ARRAY_RANGE_STORE);
+		} else if (opcode == Opcodes.INVOKESTATIC && owner.equals("java/util/Arrays") 
+				&& (name.equals("copyOf") || name.equals("copyOfRange")) && args[0].getSort() == Type.ARRAY) {
+			myStackSize(6);
+			// stack == original newLength [type] or original from to [type]
+			final int[] locals = storeArguments(args);
+			super.loadLocal(locals[0]);
+			if (name.equals("copyOf")) {
+				super.push(0);
+				super.loadLocal(locals[1]);
+			} else {
+				super.loadLocal(locals[1]);
+				super.loadLocal(locals[2]);
+			}
+			pushArrayRangeReadArgs();
+			super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_ARRAY_RANGE_LOAD);
+			loadArguments(args, locals);
+			// stack -> copy
+			super.visitMethodInsn(opcode, owner, name, desc);
+			writeWholeArray();
+		} else if (opcode == Opcodes.INVOKEVIRTUAL && owner.startsWith("[") && name.equals("clone")) {
+			myStackSize(6);
+			// stack -> array array 0 MAX
+			super.dup();
+			super.push(0);
+			super.push(Integer.MAX_VALUE);
+			pushArrayRangeReadArgs();
+			super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_ARRAY_RANGE_LOAD);
+			// stack -> copy
+			super.visitMethodInsn(opcode, owner, name, desc);
+			writeWholeArray();
+		} else {
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Pop arguments of the given types into fresh locals.
+	 */
+	private int[] storeArguments(Type[] args) {
+		final int[] locals = new int[args.length];
+		for (int i = args.length - 1; i >= 0; i--) {
+			locals[i] = super.newLocal(args[i]);
+			super.storeLocal(locals[i]);
+		}
+		return locals;
+	}
+	
+	private void loadArguments(Type[] args, int[] locals) {
+		for (int i = 0; i < args.length; i++) {
+			super.loadLocal(locals[i]);
+		}
+	}
+	
+	/**
+	 * Push array start (start + length) from locals.
+	 */
+	private void pushRange(int array, int start, int length) {
+		super.loadLocal(array);
+		super.loadLocal(start);
+		super.dup();
+		super.loadLocal(length);
+		super.math(ADD, Type.INT_TYPE);
+	}
+	
+	private void pushArrayRangeReadArgs() {
+		pushCurrentThread();
+		pushWriterCache();
+	}
+	
+	private void pushArrayRangeWriteArgs() {
+		pushCurrentState();
+		pushCurrentThread();
+	}
+	
+	/**
+	 * Shadow a write of the whole (new) array on top of the stack, leaving it there.
+	 */
+	private void writeWholeArray() {
+		// stack -> copy copy 0 MAX state thread
+		super.dup();
+		super.push(0);
+		super.push(Integer.MAX_VALUE);
+		pushArrayRangeWriteArgs();
+		super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_ARRAY_RANGE_STORE);
+	}
 
 }
@@ -0,0 +1,425 @@
+/*
+
+Copyright (c) 2010, Benjamin P. Wood and Adrian Sampson, University of Washington
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the University of Washington nor the names of its
+   contributors may be used to endorse or promote products derived from this
+   software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+*/
+
+
+package oshajava.instrument;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import oshajava.runtime.Config;
+import oshajava.spec.names.FieldDescriptor;
+import oshajava.spec.names.TypeDescriptor;
+import oshajava.support.acme.util.Assert;
+import oshajava.support.org.objectweb.asm.Opcodes;
+import oshajava.support.org.objectweb.asm.tree.AbstractInsnNode;
+import oshajava.support.org.objectweb.asm.tree.FieldInsnNode;
+import oshajava.support.org.objectweb.asm.tree.MethodNode;
+import oshajava.support.org.objectweb.asm.tree.VarInsnNode;
+import oshajava.support.org.objectweb.asm.tree.analysis.Analyzer;
+import oshajava.support.org.objectweb.asm.tree.analysis.AnalyzerException;
+import oshajava.support.org.objectweb.asm.tree.analysis.BasicInterpreter;
+import oshajava.support.org.objectweb.asm.tree.analysis.BasicValue;
+import oshajava.support.org.objectweb.asm.tree.analysis.Frame;
+import oshajava.support.org.objectweb.asm.tree.analysis.Interpreter;
+import oshajava.support.org.objectweb.asm.tree.analysis.Value;
+
+/**
+ * Finds field accesses whose checks are redundant within a method
+ * invocation (-elideRedundantChecks), then passes the method on to its
+ * MethodInstrumentor, which skips them.
+ * 
+ * A read of o.f needs no check if every path to it has already checked
+ * a read of o.f (or, for inter-thread tracking, written it) in the same
+ * invocation since the last method call, monitor operation, volatile
+ * access, or exception handler entry. A write of o.f needs no shadow update if every path to it has
+ * already written o.f since then. In between, no other thread can access
+ * o.f without racing, and no callee can touch it, so its shadow is
+ * unchanged and still holds the state the first access saw or stored.
+ * Every handler starts with nothing known: the analyzer seeds it with the
+ * frame before a throwing instruction, such as a call that let other
+ * threads' writes through before it threw.
+ * 
+ * Field reads an ArrayLoopCoarsener inserted to compute loop ranges are
+ * not checked, so they establish nothing.
+ * 
+ * Objects are identified by the local variable they were loaded from, so
+ * facts about o.f die when that local is stored. Accesses to fields whose
+ * access flags are not known yet are treated as possibly volatile.
+ * 
+ * @author bpw
+ *
+ */
+public class RedundantCheckAnalyzer extends MethodNode {
+	
+	private final String owner;
+	private final MethodInstrumentor mi;
+	
+	public RedundantCheckAnalyzer(final String owner, final MethodInstrumentor mi, final int access, final String name, 
+			final String desc, final String signature, final String[] exceptions) {
+		super(access, name, desc, signature, exceptions);
+		this.owner = owner;
+		this.mi = mi;
+	}
+	
+	@Override
+	public void visitEnd() {
+		mi.setRedundantFieldInsns(redundantFieldInsns());
+		accept(mi);
+	}
+	
+	/**
+	 * Find redundant field accesses.
+	 * 
+	 * @return the set of field instructions, numbered in code order, whose checks are redundant.
+	 */
+	private BitSet redundantFieldInsns() {
+		final BitSet redundant = new BitSet();
+		final HashSet<AbstractInsnNode> inserted = new HashSet<AbstractInsnNode>();
+		final BitSet loopRange = mi.getLoopRangeFieldInsns();
+		if (loopRange != null) {
+			int fieldInsn = 0;
+			for (int i = 0; i < instructions.size(); i++) {
+				final AbstractInsnNode insn = instructions.get(i);
+				if (insn.getType() == AbstractInsnNode.FIELD_INSN) {
+					if (loopRange.get(fieldInsn)) {
+						inserted.add(insn);
+					}
+					fieldInsn++;
+				}
+			}
+		}
+		final Frame[] frames;
+		try {
+			frames = new Analyzer(new LocalInterpreter(inserted)) {
+				@Override
+				protected Frame newFrame(final int nLocals, final int nStack) {
+					return new CheckFrame(nLocals, nStack);
+				}
+				@Override
+				protected Frame newFrame(final Frame src) {
+					return new CheckFrame(src);
+				}
+			}.analyze(owner, this);
+		} catch (AnalyzerException e) {
+			Assert.warn("Could not analyze %s.%s%s for redundant checks: %s", owner, name, desc, e.getMessage());
+			return redundant;
+		}
+		int fieldInsn = 0;
+		for (int i = 0; i < instructions.size(); i++) {
+			final AbstractInsnNode insn = instructions.get(i);
+			if (insn.getType() == AbstractInsnNode.FIELD_INSN) {
+				final CheckFrame frame = (CheckFrame)frames[i];
+				if (frame != null && frame.isRedundant((FieldInsnNode)insn)) {
+					redundant.set(fieldInsn);
+				}
+				fieldInsn++;
+			}
+		}
+		return redundant;
+	}
+	
+	/**
+	 * A reference known to be the current value of a local variable.
+	 */
+	private static class LocalValue extends BasicValue {
+		private final int local;
+		LocalValue(final int local) {
+			super(((BasicValue)BasicValue.REFERENCE_VALUE).getType());
+			this.local = local;
+		}
+		@Override
+		public boolean equals(final Object o) {
+			return o instanceof LocalValue && ((LocalValue)o).local == local;
+		}
+		@Override
+		public int hashCode() {
+			return local;
+		}
+	}
+	
+	/**
+	 * Tracks which references on the stack are still the values of the
+	 * locals they were loaded from. Also knows which field instructions
+	 * were inserted by an ArrayLoopCoarsener.
+	 */
+	private static class LocalInterpreter extends BasicInterpreter {
+		private LocalValue[] locals = new LocalValue[0];
+		private final HashSet<AbstractInsnNode> inserted;
+		
+		LocalInterpreter(final HashSet<AbstractInsnNode> inserted) {
+			this.inserted = inserted;
+		}
+		
+		boolean isInserted(final AbstractInsnNode insn) {
+			return inserted.contains(insn);
+		}
+		
+		private LocalValue local(final int local) {
+			if (local >= locals.length) {
+				final LocalValue[] more = new LocalValue[local + 8];
+				System.arraycopy(locals, 0, more, 0, locals.length);
+				locals = more;
+			}
+			if (locals[local] == null) {
+				locals[local] = new LocalValue(local);
+			}
+			return locals[local];
+		}
+		
+		@Override
+		public Value copyOperation(final AbstractInsnNode insn, final Value value) throws AnalyzerException {
+			switch (insn.getOpcode()) {
+			case Opcodes.ALOAD:
+				return local(((VarInsnNode)insn).var);
+			case Opcodes.ASTORE:
+				return value instanceof LocalValue ? BasicValue.REFERENCE_VALUE : value;
+			default:
+				return value;
+			}
+		}
+		
+		@Override
+		public Value merge(final Value v, final Value w) {
+			if (!(v instanceof LocalValue || w instanceof LocalValue)) {
+				return super.merge(v, w);
+			}
+			if (v.equals(w) || v == BasicValue.REFERENCE_VALUE || v == BasicValue.UNINITIALIZED_VALUE) {
+				return v;
+			}
+			// Loaded from different locals (or not from a local): just a reference.
+			return w instanceof LocalValue || w == BasicValue.REFERENCE_VALUE ? BasicValue.REFERENCE_VALUE : BasicValue.UNINITIALIZED_VALUE;
+		}
+	}
+	
+	/**
+	 * A frame that also carries the fields checked and written on every path to it.
+	 */
+	private static class CheckFrame extends Frame {
+		
+		/**
+		 * Keys of fields whose reads need no check.
+		 * (Not initialized here: Frame(Frame) calls init first.)
+		 */
+		private HashSet<String> checked;
+		/**
+		 * Keys of fields whose writes need no shadow update.
+		 */
+		private HashSet<String> written;
+		
+		CheckFrame(final int nLocals, final int nStack) {
+			super(nLocals, nStack);
+			checked = new HashSet<String>();
+			written = new HashSet<String>();
+		}
+		
+		CheckFrame(final Frame src) {
+			super(src);
+		}
+		
+		@Override
+		public Frame init(final Frame src) {
+			super.init(src);
+			if (checked == null) {
+				checked = new HashSet<String>();
+				written = new HashSet<String>();
+			} else {
+				checked.clear();
+				written.clear();
+			}
+			checked.addAll(((CheckFrame)src).checked);
+			written.addAll(((CheckFrame)src).written);
+			return this;
+		}
+		
+		/**
+		 * The analyzer clears the stack only to enter an exception handler.
+		 */
+		@Override
+		public void clearStack() {
+			super.clearStack();
+			kill();
+		}
+		
+		@Override
+		public boolean merge(final Frame frame, final Interpreter interpreter) throws AnalyzerException {
+			final boolean changes = super.merge(frame, interpreter);
+			return checked.retainAll(((CheckFrame)frame).checked) | written.retainAll(((CheckFrame)frame).written) | changes;
+		}
+		
+		/**
+		 * Key for the shadow accessed by insn in this frame, or null if the object is not
+		 * known to be in a local.
+		 */
+		private String key(final FieldInsnNode insn) {
+			switch (insn.getOpcode()) {
+			case Opcodes.GETSTATIC:
+			case Opcodes.PUTSTATIC:
+				return insn.owner + '.' + insn.name;
+			case Opcodes.GETFIELD:
+				return key(getStack(getStackSize() - 1), insn);
+			case Opcodes.PUTFIELD:
+				return key(getStack(getStackSize() - 2), insn);
+			default:
+				return null;
+			}
+		}
+		
+		private static String key(final Value obj, final FieldInsnNode insn) {
+			return obj instanceof LocalValue ? ((LocalValue)obj).local + ":" + insn.owner + '.' + insn.name : null;
+		}
+		
+		/**
+		 * Does the field access need no check in this (pre-access) frame?
+		 */
+		boolean isRedundant(final FieldInsnNode insn) {
+			if (!isTrackable(insn)) {
+				return false;
+			}
+			final String key = key(insn);
+			if (key == null) {
+				return false;
+			}
+			switch (insn.getOpcode()) {
+			case Opcodes.GETSTATIC:
+			case Opcodes.GETFIELD:
+				return checked.contains(key);
+			default:
+				return written.contains(key) && !Config.stackTracesOption.get();
+			}
+		}
+		
+		@Override
+		public void execute(final AbstractInsnNode insn, final Interpreter interpreter) throws AnalyzerException {
+			switch (insn.getType()) {
+			case AbstractInsnNode.FIELD_INSN:
+				final FieldInsnNode field = (FieldInsnNode)insn;
+				if (((LocalInterpreter)interpreter).isInserted(field)) {
+					// Uninstrumented: checks nothing.
+					break;
+				}
+				if (!isTrackable(field)) {
+					kill();
+					break;
+				}
+				final String key = key(field);
+				switch (insn.getOpcode()) {
+				case Opcodes.GETSTATIC:
+				case Opcodes.GETFIELD:
+					if (key != null) {
+						checked.add(key);
+					}
+					break;
+				default:
+					if (Config.intraThreadOption.get()) {
+						// Reads of the new shadow are intra-thread communication, through any alias.
+						final String suffix = ":" + field.owner + '.' + field.name;
+						for (final Iterator<String> it = checked.iterator(); it.hasNext(); ) {
+							final String k = it.next();
+							if (k.endsWith(suffix) || k.equals(suffix.substring(1))) {
+								it.remove();
+							}
+						}
+					} else if (key != null) {
+						checked.add(key);
+					}
+					if (key != null) {
+						written.add(key);
+					}
+				}
+				break;
+			case AbstractInsnNode.METHOD_INSN:
+				kill();
+				break;
+			case AbstractInsnNode.VAR_INSN:
+				if (insn.getOpcode() >= Opcodes.ISTORE && insn.getOpcode() <= Opcodes.ASTORE) {
+					store(((VarInsnNode)insn).var);
+				}
+				break;
+			case AbstractInsnNode.INSN:
+				if (insn.getOpcode() == Opcodes.MONITORENTER || insn.getOpcode() == Opcodes.MONITOREXIT) {
+					kill();
+				}
+				break;
+			}
+			super.execute(insn, interpreter);
+		}
+		
+		/**
+		 * Forget everything: a call, lock operation, or volatile access may
+		 * let other threads' writes through.
+		 */
+		private void kill() {
+			checked.clear();
+			written.clear();
+		}
+		
+		private static void forget(final HashSet<String> facts, final int var) {
+			for (final Iterator<String> it = facts.iterator(); it.hasNext(); ) {
+				final String k = it.next();
+				if (k.startsWith(var + ":") || k.startsWith((var + 1) + ":")) {
+					it.remove();
+				}
+			}
+		}
+		
+		/**
+		 * Forget facts about the object in local var (or var+1, for wide stores),
+		 * including references on the stack loaded from it.
+		 */
+		private void store(final int var) {
+			forget(checked, var);
+			forget(written, var);
+			final Value[] stack = new Value[getStackSize()];
+			for (int i = stack.length - 1; i >= 0; i--) {
+				stack[i] = pop();
+			}
+			for (final Value v : stack) {
+				push(v instanceof LocalValue && (((LocalValue)v).local == var || ((LocalValue)v).local == var + 1) ? 
+						BasicValue.REFERENCE_VALUE : v);
+			}
+		}
+		
+	}
+	
+	/**
+	 * Can facts be kept across an access to this field? Not if it may be volatile.
+	 */
+	static boolean isTrackable(final FieldInsnNode insn) {
+		final FieldDescriptor field = FieldDescriptor.of(TypeDescriptor.ofClass(insn.owner), insn.name, 
+				TypeDescriptor.fromDescriptorString(insn.desc));
+		// Unknown access flags (-1) look volatile.
+		return !field.isVolatile();
+	}
+	
+}
@@ -68,13 +68,13 @@ public class StaticShadowInitInserter extends AdviceAdapter {
     	    // inlineInitFields indicates that this is an interface, and
     	    // we should initialize these fields directly in the clinit
     	    // instead of invoking the initer.
-    	    int varCurrentState = super.newLocal(ClassInstrumentor.STATE_TYPE);
-    	    super.invokeStatic(ClassInstrumentor.RUNTIME_MONITOR_TYPE, ClassInstrumentor.HOOK_CURRENT_STATE);
+    	    int varCurrentState = super.newLocal(ClassInstrumentor.shadowType());
+    	    ClassInstrumentor.pushCurrentShadow(this);
     	    super.storeLocal(varCurrentState);
     	    for (FieldDescriptor field : inlineInitFields) {
 			    // Shadow field.
 				super.loadLocal(varCurrentState);
-				super.putStatic(classType, field.getFieldName() + ClassInstrumentor.SHADOW_FIELD_SUFFIX, ClassInstrumentor.STATE_TYPE);
+				super.putStatic(classType, field.getFieldName() + ClassInstrumentor.SHADOW_FIELD_SUFFIX, ClassInstrumentor.shadowType());
 			}
     	}
 	}
@@ -87,7 +87,7 @@ public class StaticShadowInitInserter extends AdviceAdapter {
 	@Override
 	public void visitEnd() {
 	    exitHook();
-	    super.visitMaxs(maxStack+1, maxLocals+1);
+	    super.visitMaxs(maxStack+2, maxLocals+2);
 	    super.visitEnd();
 	}
 	
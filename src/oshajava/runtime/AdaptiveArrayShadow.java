@@ -0,0 +1,196 @@
+/*
+
+Copyright (c) 2010, Benjamin P. Wood and Adrian Sampson, University of Washington
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the University of Washington nor the names of its
+   contributors may be used to endorse or promote products derived from this
+   software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+*/
+
+
+package oshajava.runtime;
+
+import java.lang.reflect.Array;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import oshajava.util.count.Counter;
+
+/**
+ * Shadow for one array under adaptive array tracking. The shadow starts
+ * coarse: a single summary State that wrote the array. When a second writer
+ * State appears, it splits into paged per-element shadows (see ArrayShadows).
+ * Elements not written since the split still answer with the summary, so
+ * only the pages written after the split are allocated.
+ * 
+ * When profiling, a coarse shadow is counted as frozen when a thread other
+ * than its writer reads it, and as thawed by the next write.
+ * 
+ * Arrays allocated at sites with a granularity policy (see Filter) are
+ * instead fixed at that granularity: NONE is never checked, COARSE never
+ * splits, and FINE starts split.
+ * 
+ * @author bpw
+ *
+ */
+final class AdaptiveArrayShadow {
+	
+	public static final Counter created = new Counter("Adaptive array shadows");
+	public static final Counter splits = new Counter("Adaptive array shadows split");
+	public static final Counter freezes = new Counter("Adaptive array shadows frozen");
+	public static final Counter thaws = new Counter("Adaptive array shadows thawed");
+	public static final Counter untracked = new Counter("Untracked array shadows");
+	public static final Counter coarse = new Counter("Coarse array shadows");
+	public static final boolean COUNT = RuntimeMonitor.PROFILE && true;
+	
+	/**
+	 * Estimated size of a shadow object.
+	 */
+	private static final int SHADOW_BYTES = 32;
+	
+	private static final AtomicReferenceFieldUpdater<AdaptiveArrayShadow,State> SUMMARY =
+		AtomicReferenceFieldUpdater.newUpdater(AdaptiveArrayShadow.class, State.class, "summary");
+
+	private final int length;
+	
+	/**
+	 * Granularity fixed by policy, or null if adaptive.
+	 */
+	private final Config.Granularity policy;
+	
+	/**
+	 * The only State that has written the array while coarse; after a split, the
+	 * last writer of any element without its own shadow. Set once.
+	 */
+	private volatile State summary;
+	
+	/**
+	 * Per-element shadows, non-null once split.
+	 */
+	private volatile State[][] pages;
+	
+	/**
+	 * Read by another thread since the last write while coarse. Profiling
+	 * only (COUNT), so racy updates just skew the counts.
+	 */
+	private boolean frozen;
+	
+	AdaptiveArrayShadow(final Object array) {
+		this(array, RuntimeMonitor.ADAPTIVE_ARRAYS ? null : Config.Granularity.FINE);
+	}
+	
+	AdaptiveArrayShadow(final Object array, final Config.Granularity policy) {
+		length = Array.getLength(array);
+		this.policy = policy;
+		if (COUNT) {
+			created.inc();
+			if (policy == Config.Granularity.NONE) untracked.inc();
+			if (policy == Config.Granularity.COARSE) coarse.inc();
+			ArrayShadows.shadowedElements.add(length);
+			ArrayShadows.shadowBytes.add(SHADOW_BYTES);
+		}
+		if (policy == Config.Granularity.FINE) {
+			pages = ArrayShadows.newDirectory(length);
+		}
+	}
+	
+	/**
+	 * Get the State of the last write to element index, or null if none.
+	 */
+	State get(final int index, final ThreadState reader) {
+		final State[][] pages = this.pages;
+		if (pages != null) {
+			final State write = ArrayShadows.get(pages, index);
+			return write == null ? summary : write;
+		}
+		if (policy == Config.Granularity.NONE) {
+			return null;
+		}
+		final State write = summary;
+		if (COUNT && write != null && !frozen && write.thread != reader) {
+			frozen = true;
+			freezes.inc();
+		}
+		return write;
+	}
+	
+	/**
+	 * Record a write to element index.
+	 */
+	void set(final int index, final State state) {
+		final State[][] pages = this.pages;
+		if (pages != null) {
+			if (RuntimeMonitor.ELIDE_SAME_STATE_WRITES) {
+				ArrayShadows.update(pages, index, state);
+			} else {
+				ArrayShadows.set(pages, index, state);
+			}
+			return;
+		}
+		if (policy == Config.Granularity.NONE) {
+			return;
+		}
+		if (COUNT && frozen) {
+			frozen = false;
+			thaws.inc();
+		}
+		if (policy == Config.Granularity.COARSE) {
+			if (!RuntimeMonitor.ELIDE_SAME_STATE_WRITES || summary != state) {
+				summary = state;
+			}
+			return;
+		}
+		final State write = summary;
+		if (write == state || (write == null && SUMMARY.compareAndSet(this, null, state))) {
+			return;
+		}
+		ArrayShadows.set(split(), index, state);
+	}
+	
+	/**
+	 * Record a write to elements [from, to).
+	 */
+	void setRange(final int from, final int to, final State state) {
+		if (pages == null) {
+			// Same as any single write while coarse.
+			set(from, state);
+			if (pages == null) {
+				return;
+			}
+		}
+		ArrayShadows.setRange(pages, from, to, state);
+	}
+	
+	private synchronized State[][] split() {
+		State[][] pages = this.pages;
+		if (pages == null) {
+			if (COUNT) splits.inc();
+			pages = ArrayShadows.newDirectory(length);
+			this.pages = pages;
+		}
+		return pages;
+	}
+	
+}
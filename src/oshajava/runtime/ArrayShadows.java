@@ -0,0 +1,151 @@
+/*
+
+Copyright (c) 2010, Benjamin P. Wood and Adrian Sampson, University of Washington
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the University of Washington nor the names of its
+   contributors may be used to endorse or promote products derived from this
+   software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+*/
+
+
+package oshajava.runtime;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+import oshajava.util.count.Counter;
+
+/**
+ * Paged shadows for fine-grained array tracking. The shadow of an array is
+ * a page directory with one slot per PAGE_SIZE elements. Pages are only
+ * allocated when an element on them is first written, so a huge array
+ * with a small written window costs a directory and a few pages instead of
+ * a State per element.
+ * 
+ * Pages are allocated under the directory's monitor. Reads take no locks:
+ * a missing page just means none of its elements has been written.
+ * 
+ * @author bpw
+ *
+ */
+final class ArrayShadows {
+	
+	public static final Counter shadowedElements = new Counter("Elements of arrays with fine shadows");
+	public static final Counter shadowBytes = new Counter("Bytes of fine array shadows (est.)");
+	public static final boolean COUNT_BYTES = RuntimeMonitor.PROFILE && true;
+	
+	/**
+	 * Estimated size of an object array header and of a reference.
+	 */
+	private static final int HEADER_BYTES = 16, REF_BYTES = 4;
+
+	static final int PAGE_SIZE = Config.arrayPageSizeOption.get();
+	static final int PAGE_BITS = Integer.numberOfTrailingZeros(PAGE_SIZE);
+	static final int PAGE_MASK = PAGE_SIZE - 1;
+	static {
+		if ((PAGE_SIZE & PAGE_MASK) != 0) throw new IllegalArgumentException("The array page size must be a power of 2. (" + PAGE_SIZE + " is not.)");
+	}
+	
+	/**
+	 * Make an empty page directory for array.
+	 */
+	static State[][] directory(final Object array) {
+		final int length = Array.getLength(array);
+		if (COUNT_BYTES) shadowedElements.add(length);
+		return newDirectory(length);
+	}
+	
+	/**
+	 * Make an empty page directory for an array of the given length without
+	 * counting its elements as shadowed.
+	 */
+	static State[][] newDirectory(final int length) {
+		final int pages = (length + PAGE_MASK) >>> PAGE_BITS;
+		if (COUNT_BYTES) shadowBytes.add(HEADER_BYTES + REF_BYTES * pages);
+		return new State[pages][];
+	}
+	
+	/**
+	 * Get the State of the last write to element index, or null if none.
+	 */
+	static State get(final State[][] directory, final int index) {
+		final State[] page = directory[index >>> PAGE_BITS];
+		return page == null ? null : page[index & PAGE_MASK];
+	}
+	
+	/**
+	 * Record a write to element index.
+	 */
+	static void set(final State[][] directory, final int index, final State state) {
+		State[] page = directory[index >>> PAGE_BITS];
+		if (page == null) {
+			page = page(directory, index >>> PAGE_BITS);
+		}
+		page[index & PAGE_MASK] = state;
+	}
+	
+	/**
+	 * Record a write to element index, leaving the page untouched if the
+	 * element was last written in the same state.
+	 */
+	static void update(final State[][] directory, final int index, final State state) {
+		final State[] page = directory[index >>> PAGE_BITS];
+		if (page == null) {
+			page(directory, index >>> PAGE_BITS)[index & PAGE_MASK] = state;
+		} else if (page[index & PAGE_MASK] != state) {
+			page[index & PAGE_MASK] = state;
+		}
+	}
+	
+	/**
+	 * Record a write to elements [from, to).
+	 */
+	static void setRange(final State[][] directory, int from, final int to, final State state) {
+		while (from < to) {
+			final int p = from >>> PAGE_BITS;
+			final int end = Math.min(to, (p + 1) << PAGE_BITS);
+			State[] page = directory[p];
+			if (page == null) {
+				page = page(directory, p);
+			}
+			Arrays.fill(page, from & PAGE_MASK, ((end - 1) & PAGE_MASK) + 1, state);
+			from = end;
+		}
+	}
+	
+	private static State[] page(final State[][] directory, final int p) {
+		synchronized (directory) {
+			State[] page = directory[p];
+			if (page == null) {
+				page = new State[PAGE_SIZE];
+				if (COUNT_BYTES) shadowBytes.add(HEADER_BYTES + REF_BYTES * PAGE_SIZE);
+				directory[p] = page;
+			}
+			return page;
+		}
+	}
+
+}
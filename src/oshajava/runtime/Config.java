@@ -81,13 +81,24 @@ public class Config {
 	public static final CommandLineOption<Boolean> intraThreadOption =
 		CommandLine.makeBoolean("intraThread", false, Kind.EXPERIMENTAL, "Track all (intra- and inter-thread) communication.");
 
-	public enum Granularity { FINE, COARSE }; // TODO add NONE level.
+	public enum Granularity { FINE, COARSE, NONE };
 	public static final CommandLineOption<Granularity> arrayTrackingOption =
 		CommandLine.makeEnumChoice("arrayTracking", Granularity.FINE, Kind.STABLE, "Set array tracking granularity. Default: " + Granularity.FINE, Granularity.class);
 	
+	public static final CommandLineOption<Boolean> adaptiveArraysOption =
+		CommandLine.makeBoolean("adaptiveArrays", false, Kind.EXPERIMENTAL, 
+				"With FINE array tracking, shadow each array coarsely until a second writer appears, then split it to per-element shadows.");
+
 	public static final CommandLineOption<Granularity> objectTrackingOption = 
 		CommandLine.makeEnumChoice("objectTracking", Granularity.FINE, Kind.EXPERIMENTAL, 
-				"Set object tracking granularity. Default: " + Granularity.FINE + " (COARSE is not fully implemented.)", Granularity.class);
+				"Set object tracking granularity. Default: " + Granularity.FINE + ". COARSE shares shadows among the fields of an object (see -objectGrouping).", Granularity.class);
+	
+	public enum ObjectGrouping { OBJECT, ANNOTATED, AUTO };
+	public static final CommandLineOption<ObjectGrouping> objectGroupingOption =
+		CommandLine.makeEnumChoice("objectGrouping", ObjectGrouping.ANNOTATED, Kind.EXPERIMENTAL, 
+				"Set how COARSE objects group fields under shadows. Default: " + ObjectGrouping.ANNOTATED + ". " +
+				"OBJECT uses one shadow per object. ANNOTATED also gives each @ShadowGroup its own shadow. " +
+				"AUTO is ANNOTATED, but splits an object's shadow into per-field states once its fields are written by different threads.", ObjectGrouping.class);
 	
 	public static final CommandLineOption<Boolean> lockTrackingOption =
 		CommandLine.makeBoolean("lockTracking", false, Kind.STABLE, "Treat acquire/release/wait synchronization as communication.");
@@ -104,9 +115,81 @@ public class Config {
 	public static final CommandLineOption<Integer> arrayCacheSizeOption =
 		CommandLine.makeInteger("arrayCacheSize", 16, Kind.STABLE, "Set the array state (or array state array) cache size. Default: " + 16);
 
+	public static final CommandLineOption<Integer> arrayPageSizeOption =
+		CommandLine.makeInteger("arrayPageSize", 1024, Kind.STABLE, "Set the number of elements per page of fine-grained array shadows. Default: " + 1024);
+
 	public static final CommandLineOption<Integer> lockCacheSizeOption =
 		CommandLine.makeInteger("lockCacheSize", 4, Kind.STABLE, "Set the lock state cache size. Default: " + 4);
 	
+	public static final CommandLineOption<Integer> shadowCacheWaysOption =
+		CommandLine.makeInteger("shadowCacheWays", 1, Kind.EXPERIMENTAL, 
+				"Set the associativity of the array and lock state caches: 1 (direct-mapped), 2, 4, or 8 ways with pseudo-LRU replacement. Default: " + 1);
+	
+	public static final CommandLineOption<Integer> shadowCacheVictimsOption =
+		CommandLine.makeInteger("shadowCacheVictims", 4, Kind.EXPERIMENTAL, 
+				"Set the victim buffer size of set-associative array and lock state caches. Default: " + 4);
+	
+	public static final CommandLineOption<Integer> stackCacheSizeOption =
+		CommandLine.makeInteger("stackCacheSize", 64, Kind.STABLE, "Set the per-thread stack interning cache size. Default: " + 64);
+	
+	public static final CommandLineOption<Integer> verdictCacheSizeOption =
+		CommandLine.makeInteger("verdictCacheSize", 4096, Kind.STABLE, "Set the global stack walk verdict cache size (0 to disable). Default: " + 4096);
+	
+	public static final CommandLineOption<Boolean> collapseRecursionOption =
+		CommandLine.makeBoolean("collapseRecursion", false, Kind.STABLE, "Fold recursive calls that do not change a module segment's method set into one stack.");
+	
+	public static final CommandLineOption<Boolean> lazyStacksOption =
+		CommandLine.makeBoolean("lazyStacks", false, Kind.STABLE, "Track calls on a primitive shadow call stack and only build a frame's State when it first writes or checks.");
+	
+	public static final CommandLineOption<Boolean> packedShadowsOption =
+		CommandLine.makeBoolean("packedShadows", false, Kind.STABLE, "Shadow fields with a packed (thread id, stack serial) long instead of a State reference.");
+	
+	public static final CommandLineOption<Boolean> inlineCachesOption =
+		CommandLine.makeBoolean("inlineCaches", false, Kind.EXPERIMENTAL, 
+				"Cache the last validated (writer, reader) State pair at each field read site, checked by reference before the writer cache.");
+	
+	public static final CommandLineOption<Boolean> redundantChecksOption =
+		CommandLine.makeBoolean("elideRedundantChecks", false, Kind.EXPERIMENTAL, 
+				"Skip field checks made redundant by an earlier check or write of the same field in the same method invocation, " +
+				"with no intervening call, lock operation, or volatile access.  Sound for race-free programs.");
+	
+	public static final CommandLineOption<Boolean> coarsenArrayLoopsOption =
+		CommandLine.makeBoolean("coarsenArrayLoops", false, Kind.EXPERIMENTAL, 
+				"Check the array elements read by simple counted loops with one range hook before the loop, " +
+				"and record the elements written with one range hook after it, instead of hooking each access.");
+	
+	public static final CommandLineOption<Boolean> elideSameStateWritesOption =
+		CommandLine.makeBoolean("elideSameStateWrites", false, Kind.EXPERIMENTAL, 
+				"Compare before storing to a field or array shadow and skip the store if the shadow already holds the current state.");
+	
+	public enum CheckOutlining { NONE, OVER_BUDGET, ALL };
+	public static final CommandLineOption<CheckOutlining> outlineChecksOption =
+		CommandLine.makeEnumChoice("outlineChecks", CheckOutlining.NONE, Kind.EXPERIMENTAL, 
+				"Set which field read checks call a per-field static check stub generated in the reading class instead of being inlined. Default: " + 
+				CheckOutlining.NONE + ". OVER_BUDGET outlines the checks of a method once its instrumented code exceeds -outlineBudget bytes.", 
+				CheckOutlining.class);
+	
+	public static final CommandLineOption<Integer> outlineBudgetOption =
+		CommandLine.makeInteger("outlineBudget", 325, Kind.EXPERIMENTAL, 
+				"Set the instrumented method size in bytes past which -outlineChecks=OVER_BUDGET outlines checks. Default: " + 325 + 
+				" (HotSpot's FreqInlineSize)");
+	
+	public static final CommandLineOption<Boolean> offHeapArraysOption =
+		CommandLine.makeBoolean("offHeapArrays", false, Kind.EXPERIMENTAL, 
+				"Keep FINE array shadows as packed words in direct memory slabs instead of State arrays. Overrides -adaptiveArrays and array granularity policies.");
+	
+	public enum StackIdPolicy { FIRST, FREQUENCY, SAMPLED }
+	public static final CommandLineOption<StackIdPolicy> stackIdPolicyOption =
+		CommandLine.makeEnumChoice("stackIdPolicy", StackIdPolicy.FREQUENCY, Kind.STABLE, "When to give a writer stack an id so reads of its writes take the fast path. " +
+				"FIRST promotes on the first successful check, FREQUENCY after stackIdThreshold checks, " + 
+				"SAMPLED once it is sampled twice out of one in stackIdSampleRate checks. Default: " + StackIdPolicy.FREQUENCY, StackIdPolicy.class);
+	
+	public static final CommandLineOption<Integer> stackIdThresholdOption =
+		CommandLine.makeInteger("stackIdThreshold", 8, Kind.STABLE, "Successful checks of a writer stack before the FREQUENCY policy gives it an id. Default: " + 8);
+	
+	public static final CommandLineOption<Integer> stackIdSampleRateOption =
+		CommandLine.makeInteger("stackIdSampleRate", 16, Kind.STABLE, "The SAMPLED policy samples one in this many successful checks. Default: " + 16);
+	
 	public static final CommandLineOption<Boolean> fudgeExceptionTracesOption =
 		CommandLine.makeBoolean("fudgeExceptionStackTraces", true, Kind.STABLE, "Make communication exceptions look like they occur directly in user code.");
 
@@ -150,6 +233,10 @@ public class Config {
     public static final CommandLineOption<Boolean> shadowStoreGCoption =
     	CommandLine.makeBoolean("shadowStoreGC", false, Kind.STABLE, "Turn on garbage collection of expired keys in shadow stores.");
     
+    public static final CommandLineOption<Integer> shadowStoreCleanerOption =
+    	CommandLine.makeInteger("shadowStoreCleaner", 0, Kind.EXPERIMENTAL, 
+    			"Expunge shadow store entries of collected objects from a background thread every N ms. Default: 0 (no cleaner).");
+    
     /************/
 
     public static final CommandLine cl = new CommandLine(TOOL_NAME, "[ -javaOptions java options ] -- Program [ program args ]", helpOption, jvmOption);
@@ -166,12 +253,17 @@ public class Config {
 		
 		cl.add(noInstrumentOption);
 		cl.add(arrayTrackingOption);
+		cl.add(adaptiveArraysOption);
 		cl.add(objectTrackingOption);
+		cl.add(objectGroupingOption);
 		cl.add(lockTrackingOption);
 //		cl.add(InstrumentationAgent.ignoreFinalFieldsOption);
 		cl.add(Filter.instrumentClassesOption);
 		cl.add(Filter.instrumentFieldsOption);
 		cl.add(Filter.instrumentMethodsOption);
+		cl.add(Filter.untrackedOption);
+		cl.add(Filter.coarseOption);
+		cl.add(Filter.fineOption);
 		cl.add(Agent.volatileShadowOption);
 		cl.add(intraThreadOption);
 		
@@ -183,8 +275,27 @@ public class Config {
 		cl.addGroup("Optimizations");
 		
 		cl.add(arrayCacheSizeOption);
+		cl.add(arrayPageSizeOption);
 		cl.add(lockCacheSizeOption);
+		cl.add(shadowCacheWaysOption);
+		cl.add(shadowCacheVictimsOption);
+		cl.add(stackCacheSizeOption);
+		cl.add(verdictCacheSizeOption);
+		cl.add(collapseRecursionOption);
+		cl.add(lazyStacksOption);
+		cl.add(packedShadowsOption);
+		cl.add(inlineCachesOption);
+		cl.add(redundantChecksOption);
+		cl.add(coarsenArrayLoopsOption);
+		cl.add(elideSameStateWritesOption);
+		cl.add(outlineChecksOption);
+		cl.add(outlineBudgetOption);
+		cl.add(offHeapArraysOption);
+		cl.add(stackIdPolicyOption);
+		cl.add(stackIdThresholdOption);
+		cl.add(stackIdSampleRateOption);
 		cl.add(shadowStoreGCoption);
+		cl.add(shadowStoreCleanerOption);
 		
 		cl.addGroup("Profiling");
 		
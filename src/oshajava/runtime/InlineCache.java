@@ -0,0 +1,143 @@
+/*
+
+Copyright (c) 2010, Benjamin P. Wood and Adrian Sampson, University of Washington
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the University of Washington nor the names of its
+   contributors may be used to endorse or promote products derived from this
+   software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+*/
+
+
+package oshajava.runtime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import oshajava.support.acme.util.Util;
+
+/**
+ * Per-site inline cache for instrumented field reads (-inlineCaches).
+ * 
+ * Each read site that checks communication gets a private static slot in
+ * its class holding the last (writer State, reader State) pair the site
+ * validated. A read whose writer and reader States are both identical to
+ * the cached pair is allowed after two reference compares, without the
+ * reader's writer cache. Pairs are immutable, so racing updates of a slot
+ * never produce a pair that was not validated.
+ * 
+ * With DEEP profiling, sites are registered at instrumentation time and
+ * their hits and misses are counted.
+ * 
+ * @author bpw
+ *
+ */
+public final class InlineCache {
+	
+	/**
+	 * Last validated writer and reader.
+	 */
+	public final State writer, reader;
+	
+	private InlineCache(final State writer, final State reader) {
+		this.writer = writer;
+		this.reader = reader;
+	}
+	
+	/**
+	 * Hook: make the cache entry for a pair the site just validated.
+	 */
+	public static InlineCache validated(final State writer, final State reader) {
+		return new InlineCache(writer, reader);
+	}
+	
+	// -- Profiling -----------------------------------------------------------------
+	
+	private static final class Site {
+		final String name;
+		long hits, misses;
+		Site(final String name) {
+			this.name = name;
+		}
+	}
+	
+	private static final ArrayList<Site> sites = new ArrayList<Site>();
+	private static volatile Site[] siteArray = new Site[0];
+	
+	/**
+	 * Register a site for profiling. Called at instrumentation time.
+	 * @return the site's id
+	 */
+	public static synchronized int register(final String name) {
+		sites.add(new Site(name));
+		siteArray = sites.toArray(new Site[sites.size()]);
+		return sites.size() - 1;
+	}
+	
+	/**
+	 * Hook: count a hit at a site. (Races may lose counts.)
+	 */
+	public static void countHit(final int site) {
+		siteArray[site].hits++;
+	}
+	
+	/**
+	 * Hook: count a miss at a site.
+	 */
+	public static void countMiss(final int site) {
+		siteArray[site].misses++;
+	}
+	
+	private static final int REPORT_SITES = 10;
+	
+	/**
+	 * Log the overall hit rate and the sites with the most lookups.
+	 */
+	static void report() {
+		final Site[] all = siteArray.clone();
+		long hits = 0, misses = 0;
+		for (final Site s : all) {
+			hits += s.hits;
+			misses += s.misses;
+		}
+		if (hits + misses == 0) {
+			return;
+		}
+		Util.logf("Inline cache lookups: %d at %d sites", hits + misses, all.length);
+		Util.logf("       cache hit rate: %f%%", 100.0 * (double)hits / (double)(hits + misses));
+		Arrays.sort(all, new Comparator<Site>() {
+			public int compare(Site a, Site b) {
+				final long la = a.hits + a.misses, lb = b.hits + b.misses;
+				return la < lb ? 1 : la > lb ? -1 : 0;
+			}
+		});
+		for (int i = 0; i < Math.min(REPORT_SITES, all.length) && all[i].hits + all[i].misses > 0; i++) {
+			final Site s = all[i];
+			Util.logf("  %f%% of %d: %s", 100.0 * (double)s.hits / (double)(s.hits + s.misses), s.hits + s.misses, s.name);
+		}
+	}
+
+}
@@ -0,0 +1,238 @@
+/*
+
+Copyright (c) 2010, Benjamin P. Wood and Adrian Sampson, University of Washington
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the University of Washington nor the names of its
+   contributors may be used to endorse or promote products derived from this
+   software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+*/
+
+
+package oshajava.runtime;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Off-heap store for fine-grained array shadows. Pages of packed shadow
+ * words (see State.word) are carved out of direct ByteBuffer slabs, so the
+ * collector never traces array shadows. An array's shadow is a directory
+ * of page handles (0 for none) wrapped in a PhantomReference to the
+ * array. When the array is collected, its pages go back on the free
+ * list the next time a page is allocated.
+ * 
+ * Words are read and written without locks; an aligned long is atomic on
+ * the platforms we run on, and racy element writes race in the program too.
+ * Pages are allocated under the class lock and their handles published
+ * with a volatile write, so a reader that sees a handle also sees its slab
+ * and, for a recycled page, its zeroed words.
+ * 
+ * @author bpw
+ *
+ */
+final class OffHeapArrayShadows {
+	
+	/**
+	 * Shadow for one array.
+	 */
+	static final class Shadow extends PhantomReference<Object> {
+		final AtomicIntegerArray pages;
+		Shadow(final Object array) {
+			super(array, collected);
+			pages = new AtomicIntegerArray((Array.getLength(array) + ArrayShadows.PAGE_MASK) >>> ArrayShadows.PAGE_BITS);
+		}
+	}
+
+	private static final int PAGE_SIZE = ArrayShadows.PAGE_SIZE, PAGE_BITS = ArrayShadows.PAGE_BITS, PAGE_MASK = ArrayShadows.PAGE_MASK;
+	private static final int PAGE_BYTES = PAGE_SIZE << 3;
+	
+	/**
+	 * Pages per slab: 1MB slabs, or one page if pages are bigger.
+	 */
+	private static final int SLAB_PAGES = Math.max(1, (1 << 20) / PAGE_BYTES);
+	
+	private static final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+	
+	/**
+	 * Shadows of live arrays. Keeps each Shadow reachable until it is enqueued.
+	 */
+	private static final Set<Shadow> live = Collections.newSetFromMap(new ConcurrentHashMap<Shadow,Boolean>());
+	
+	private static volatile ByteBuffer[] slabs = new ByteBuffer[4];
+	private static int slabCount = 0;
+	
+	/**
+	 * Free page handles, and the next never-used handle.
+	 */
+	private static int[] free = new int[64];
+	private static int freeCount = 0;
+	private static int nextHandle = 1;
+	
+	private static long bytesInUse = 0, peakBytes = 0, bytesReserved = 0;
+	
+	static Shadow shadow(final Object array) {
+		final Shadow shadow = new Shadow(array);
+		if (ArrayShadows.COUNT_BYTES) {
+			ArrayShadows.shadowedElements.add(Array.getLength(array));
+			ArrayShadows.shadowBytes.add(16 + 4 * shadow.pages.length());
+		}
+		live.add(shadow);
+		return shadow;
+	}
+	
+	/**
+	 * Get the shadow word for element index, or 0 if it has not been written.
+	 */
+	static long get(final Shadow shadow, final int index) {
+		final int handle = shadow.pages.get(index >>> PAGE_BITS);
+		if (handle == 0) {
+			return 0L;
+		}
+		return slabs[slab(handle)].getLong(offset(handle, index));
+	}
+	
+	/**
+	 * Set the shadow word for element index.
+	 */
+	static void set(final Shadow shadow, final int index, final long word) {
+		final int p = index >>> PAGE_BITS;
+		int handle = shadow.pages.get(p);
+		if (handle == 0) {
+			handle = page(shadow, p);
+		}
+		slabs[slab(handle)].putLong(offset(handle, index), word);
+	}
+	
+	/**
+	 * Set the shadow word for element index unless it already holds word.
+	 */
+	static void update(final Shadow shadow, final int index, final long word) {
+		final int handle = shadow.pages.get(index >>> PAGE_BITS);
+		if (handle == 0) {
+			set(shadow, index, word);
+		} else {
+			final ByteBuffer slab = slabs[slab(handle)];
+			final int offset = offset(handle, index);
+			if (slab.getLong(offset) != word) {
+				slab.putLong(offset, word);
+			}
+		}
+	}
+	
+	/**
+	 * Set the shadow words for elements [from, to).
+	 */
+	static void setRange(final Shadow shadow, final int from, final int to, final long word) {
+		for (int i = from; i < to; i++) {
+			set(shadow, i, word);
+		}
+	}
+	
+	private static int slab(final int handle) {
+		return (handle - 1) / SLAB_PAGES;
+	}
+	
+	private static int offset(final int handle, final int index) {
+		return ((handle - 1) % SLAB_PAGES) * PAGE_BYTES + ((index & PAGE_MASK) << 3);
+	}
+	
+	private static synchronized int page(final Shadow shadow, final int p) {
+		int handle = shadow.pages.get(p);
+		if (handle == 0) {
+			expunge();
+			if (freeCount > 0) {
+				handle = free[--freeCount];
+				final ByteBuffer slab = slabs[slab(handle)];
+				final int base = offset(handle, 0);
+				for (int i = 0; i < PAGE_BYTES; i += 8) {
+					slab.putLong(base + i, 0L);
+				}
+			} else {
+				handle = nextHandle++;
+				if (slab(handle) == slabCount) {
+					addSlab();
+				}
+			}
+			bytesInUse += PAGE_BYTES;
+			if (bytesInUse > peakBytes) peakBytes = bytesInUse;
+			// Publish after the page is in place.
+			shadow.pages.set(p, handle);
+		}
+		return handle;
+	}
+	
+	private static void addSlab() {
+		ByteBuffer[] s = slabs;
+		if (slabCount == s.length) {
+			s = Arrays.copyOf(s, s.length << 1);
+		}
+		s[slabCount++] = ByteBuffer.allocateDirect(SLAB_PAGES * PAGE_BYTES).order(ByteOrder.nativeOrder());
+		bytesReserved += SLAB_PAGES * PAGE_BYTES;
+		// Publish after the new slab is in place.
+		slabs = s;
+	}
+	
+	/**
+	 * Free the pages of collected arrays. Call holding the class lock.
+	 */
+	private static void expunge() {
+		Shadow shadow;
+		while ((shadow = (Shadow)collected.poll()) != null) {
+			live.remove(shadow);
+			for (int p = 0; p < shadow.pages.length(); p++) {
+				final int handle = shadow.pages.get(p);
+				if (handle != 0) {
+					if (freeCount == free.length) {
+						free = Arrays.copyOf(free, free.length << 1);
+					}
+					free[freeCount++] = handle;
+					bytesInUse -= PAGE_BYTES;
+				}
+			}
+		}
+	}
+	
+	static synchronized long peakBytes() {
+		return peakBytes;
+	}
+	
+	static synchronized long bytesInUse() {
+		return bytesInUse;
+	}
+	
+	static synchronized long bytesReserved() {
+		return bytesReserved;
+	}
+	
+}
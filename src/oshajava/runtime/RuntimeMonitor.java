@@ -42,6 +42,7 @@ import java.lang.reflect.Array;
 import java.util.HashSet;
 import java.util.Set;
 
+import oshajava.instrument.Filter;
 import oshajava.runtime.exceptions.IllegalCommunicationException;
 import oshajava.runtime.exceptions.IllegalSharingException;
 import oshajava.runtime.exceptions.IllegalSynchronizationException;
@@ -49,7 +50,7 @@ import oshajava.support.acme.util.Assert;
 import oshajava.support.acme.util.Debug;
 import oshajava.support.acme.util.Util;
 import oshajava.support.acme.util.option.Option;
-import oshajava.util.BitVectorIntSet;
+import oshajava.util.ConcurrentBitVectorIntSet;
 import oshajava.util.Py;
 import oshajava.util.PyWriter;
 import oshajava.util.WeakConcurrentIdentityHashMap;
@@ -69,6 +70,22 @@ public class RuntimeMonitor {
 	public static final boolean PROFILE = Config.profileOption.get() == Config.ProfileLevel.DEEP;
  	public static final boolean CREATE = Config.createOption.get();
  	public static final boolean INTRA_THREAD = Config.intraThreadOption.get();
+ 	public static final boolean COARSE_ARRAYS = Config.arrayTrackingOption.get() == Config.Granularity.COARSE;
+ 	public static final boolean OFF_HEAP_ARRAYS = Config.offHeapArraysOption.get() 
+ 			&& Config.arrayTrackingOption.get() == Config.Granularity.FINE;
+ 	public static final boolean ADAPTIVE_ARRAYS = Config.adaptiveArraysOption.get() 
+ 			&& Config.arrayTrackingOption.get() == Config.Granularity.FINE && !OFF_HEAP_ARRAYS;
+ 	public static final boolean ARRAY_POLICIES = Filter.hasPolicies() 
+ 			&& Config.arrayTrackingOption.get() == Config.Granularity.FINE && !OFF_HEAP_ARRAYS;
+ 	/**
+ 	 * Shadow each array with an AdaptiveArrayShadow instead of a bare page directory.
+ 	 */
+ 	public static final boolean ARRAY_SHADOW_OBJECTS = ADAPTIVE_ARRAYS || ARRAY_POLICIES;
+ 	/**
+ 	 * Skip shadow stores that would not change the shadow, so that rewriting a
+ 	 * hot element does not dirty its shadow's cache line.
+ 	 */
+ 	public static final boolean ELIDE_SAME_STATE_WRITES = Config.elideSameStateWritesOption.get();
 
 	public static final Counter fieldReadCounter = new Counter("All field reads");
 	public static final Counter fieldCommCounter = new Counter("Communicating field reads");
@@ -76,9 +93,13 @@ public class RuntimeMonitor {
 	public static final Counter arrayReadCounter = new Counter("All array reads");
 	public static final Counter arrayCommCounter = new Counter("Communicating array reads");
 	public static final Counter arraySlowPathCounter = new Counter("Communicating array read slow path");
+	public static final Counter bulkReadCounter = new Counter("Bulk array reads");
+	public static final Counter bulkWriteCounter = new Counter("Bulk array writes");
+	public static final Counter bulkWriteElementCounter = new Counter("Elements written by bulk array writes");
 	public static final Counter lockCounter = new Counter("All acquires");
 	public static final Counter lockCommCounter = new Counter("Communicating acquires");
 	public static final Counter lockSlowPathCounter = new Counter("Communicating acquire slow path");
+	public static final Counter lockFieldCounter = new Counter("Acquires of instrumented objects");
     public static final Set<String> createdGraphSet = new HashSet<String>();
 
 	private static final ThreadLocal<ThreadState> threadState = new ThreadLocal<ThreadState>() {
@@ -90,11 +111,15 @@ public class RuntimeMonitor {
 
 	// TODO Stress test the WCIHM.
 	protected static final WeakConcurrentIdentityHashMap<Object,LockState> lockStates = 
-		new WeakConcurrentIdentityHashMap<Object,LockState>(Config.shadowStoreGCoption.get());
-	protected static final WeakConcurrentIdentityHashMap<Object,State[]> arrayStates = 
-		new WeakConcurrentIdentityHashMap<Object,State[]>(Config.shadowStoreGCoption.get());
+		ShadowStores.create("lockStates");
+	protected static final WeakConcurrentIdentityHashMap<Object,State[][]> arrayStates = 
+		ShadowStores.create("arrayStates");
+	protected static final WeakConcurrentIdentityHashMap<Object,AdaptiveArrayShadow> adaptiveArrayStates = 
+		ShadowStores.create("adaptiveArrayStates");
+	protected static final WeakConcurrentIdentityHashMap<Object,OffHeapArrayShadows.Shadow> offHeapArrayStates = 
+		ShadowStores.create("offHeapArrayStates");
 	protected static final WeakConcurrentIdentityHashMap<Object,Ref<State>> coarseArrayStates = 
-		new WeakConcurrentIdentityHashMap<Object,Ref<State>>(Config.shadowStoreGCoption.get());
+		ShadowStores.create("coarseArrayStates");
 
 	static class Ref<T> {
 		T contents; // FIXME make volatile if volatileShadows option is set...
@@ -154,7 +179,34 @@ public class RuntimeMonitor {
 		    error(new IllegalSharingException(write, read, trace, on));
 		}
 	}
-	private static void checkArrayRead(final State write, final ThreadState reader, final BitVectorIntSet wCache, final StackTraceElement[] trace) {
+	/**
+	 * Slow path for reads of fields with packed shadow words.
+	 * 
+	 * @param write the field's shadow word
+	 * @param read
+	 * @param on
+	 */
+	public static void checkPackedFieldRead(final long write, final State read, final String on) {
+		checkPackedFieldRead(write, read, on, null);
+	}
+	public static void checkPackedFieldRead(final long write, final State read, final String on, 
+			final StackTraceElement[] trace) {
+		if (PROFILE) {
+			fieldSlowPathCounter.inc();
+		}
+		if (CREATE && trace != null) {
+		    createEdge(trace);
+		}
+		final Stack writer = Stack.bySerial(State.wordSerial(write));
+		if (writer == null) {
+			// Never written by tracked code.
+			return;
+		}
+		if (!read.stack.checkWriter(writer)) {
+		    error(new IllegalSharingException(State.unpack(write, writer), read, trace, on));
+		}
+	}
+	private static void checkArrayRead(final State write, final ThreadState reader, final ConcurrentBitVectorIntSet wCache, final StackTraceElement[] trace) {
 		if (INTRA_THREAD || write.thread != reader) {
 			if (PROFILE) {
 				arrayCommCounter.inc();
@@ -166,8 +218,30 @@ public class RuntimeMonitor {
 				if (PROFILE) {
 					arraySlowPathCounter.inc();
 				}
-				if (!reader.state.stack.checkWriter(write.stack)) {
-					error(new IllegalSharingException(write, reader.state, trace));
+				final State read = reader.currentState();
+				if (!read.stack.checkWriter(write.stack)) {
+					error(new IllegalSharingException(write, read, trace));
+				}
+			}
+		}
+	}
+
+	private static void checkPackedArrayRead(final long write, final ThreadState reader, final ConcurrentBitVectorIntSet wCache) {
+		if (INTRA_THREAD || State.wordThreadID(write) != reader.id) {
+			if (PROFILE) {
+				arrayCommCounter.inc();
+			}
+			if (CREATE) {
+			    createEdge(null);
+			}
+			if (!wCache.contains(State.wordSerial(write))) {
+				if (PROFILE) {
+					arraySlowPathCounter.inc();
+				}
+				final Stack writer = Stack.bySerial(State.wordSerial(write));
+				final State read = reader.currentState();
+				if (!read.stack.checkWriter(writer)) {
+					error(new IllegalSharingException(State.unpack(write, writer), read, null));
 				}
 			}
 		}
@@ -175,18 +249,48 @@ public class RuntimeMonitor {
 
 	// TODO Skip the wCache parameter and just do the field lookup if needed?
 	// OK if array == null. Slower, but the program is about to throw a NullPointerException anyway.
-	public static void arrayRead(final Object array, final int index, final ThreadState reader, final BitVectorIntSet wCache) {
+	public static void arrayRead(final Object array, final int index, final ThreadState reader, final ConcurrentBitVectorIntSet wCache) {
 		if (PROFILE) {
 			arrayReadCounter.inc();
 		}
-		final State[] states;
+		if (OFF_HEAP_ARRAYS) {
+			final OffHeapArrayShadows.Shadow shadow;
+			try {
+				shadow = reader.offHeapArrayStateCache.get(array);
+			} catch (NullPointerException e) {
+				throw fudgeTrace(e);
+			}
+			if (shadow != null) {
+				final long write = OffHeapArrayShadows.get(shadow, index);
+				if (write != 0L) {
+					checkPackedArrayRead(write, reader, wCache);
+				}
+			}
+			return;
+		}
+		if (ARRAY_SHADOW_OBJECTS) {
+			final AdaptiveArrayShadow shadow;
+			try {
+				shadow = reader.adaptiveArrayStateCache.get(array);
+			} catch (NullPointerException e) {
+				throw fudgeTrace(e);
+			}
+			if (shadow != null) {
+				final State write = shadow.get(index, reader);
+				if (write != null) {
+					checkArrayRead(write, reader, wCache, null);
+				}
+			}
+			return;
+		}
+		final State[][] states;
 		try {
 			states = reader.arrayIndexStateCache.get(array);
 		} catch (NullPointerException e) {
 			throw fudgeTrace(e);
 		}
 		if (states != null) {
-			final State write = states[index];
+			final State write = ArrayShadows.get(states, index);
 			if (write != null) {
 				checkArrayRead(write, reader, wCache, null);
 			}
@@ -194,21 +298,197 @@ public class RuntimeMonitor {
 	}
 
 	public static void arrayWrite(final Object array, final int index, final State currentState, final ThreadState writer) {
-		State[] states = writer.arrayIndexStateCache.get(array);
+		if (OFF_HEAP_ARRAYS) {
+			if (ELIDE_SAME_STATE_WRITES) {
+				OffHeapArrayShadows.update(offHeapShadow(array, writer), index, currentState.word);
+			} else {
+				OffHeapArrayShadows.set(offHeapShadow(array, writer), index, currentState.word);
+			}
+		} else if (ARRAY_SHADOW_OBJECTS) {
+			adaptiveShadow(array, writer).set(index, currentState);
+		} else if (ELIDE_SAME_STATE_WRITES) {
+			ArrayShadows.update(pageDirectory(array, writer), index, currentState);
+		} else {
+			ArrayShadows.set(pageDirectory(array, writer), index, currentState);
+		}
+	}
+	
+	private static OffHeapArrayShadows.Shadow offHeapShadow(final Object array, final ThreadState writer) {
+		OffHeapArrayShadows.Shadow shadow = writer.offHeapArrayStateCache.get(array);
+		if (shadow == null) {
+			shadow = OffHeapArrayShadows.shadow(array);
+			final OffHeapArrayShadows.Shadow oldShadow = writer.offHeapArrayStateCache.putIfAbsent(array, shadow);
+			if (oldShadow != null) {
+				shadow = oldShadow;
+			}
+		}
+		return shadow;
+	}
+	
+	private static AdaptiveArrayShadow adaptiveShadow(final Object array, final ThreadState writer) {
+		AdaptiveArrayShadow shadow = writer.adaptiveArrayStateCache.get(array);
+		if (shadow == null) {
+			shadow = new AdaptiveArrayShadow(array);
+			final AdaptiveArrayShadow oldShadow = writer.adaptiveArrayStateCache.putIfAbsent(array, shadow);
+			if (oldShadow != null) {
+				shadow = oldShadow;
+			}
+		}
+		return shadow;
+	}
+	
+	private static State[][] pageDirectory(final Object array, final ThreadState writer) {
+		State[][] states = writer.arrayIndexStateCache.get(array);
 		if (states == null) {
-			states = new State[Array.getLength(array)];
-			final State[] oldStates = writer.arrayIndexStateCache.putIfAbsent(array, states);
+			states = ArrayShadows.directory(array);
+			final State[][] oldStates = writer.arrayIndexStateCache.putIfAbsent(array, states);
 			if (oldStates != null) {
 				states = oldStates;
 			}
 		}
-		states[index] = currentState;
+		return states;
+	}
+
+	/**
+	 * Array allocation hook for sites with a granularity policy.
+	 */
+	public static void newArray(final Object array, final int granularity, final ThreadState allocator) {
+		if (ARRAY_POLICIES) {
+			allocator.adaptiveArrayStateCache.putIfAbsent(array, 
+					new AdaptiveArrayShadow(array, Config.Granularity.values()[granularity]));
+		}
+	}
+
+	/**
+	 * Bulk array read hook (System.arraycopy, Arrays.copyOf*, clone) for elements
+	 * [from, to) of array, clamped to its bounds. Checks each distinct run of
+	 * writes once. Works under FINE and COARSE tracking.
+	 * 
+	 * OK if array is null or not an array, or the range is bad. The operation
+	 * will throw.
+	 */
+	public static void arrayRangeRead(final Object array, int from, int to, final ThreadState reader, final ConcurrentBitVectorIntSet wCache) {
+		if (array == null || !array.getClass().isArray()) {
+			return;
+		}
+		if (PROFILE) {
+			bulkReadCounter.inc();
+		}
+		if (COARSE_ARRAYS) {
+			coarseArrayRead(array, reader, wCache);
+			return;
+		}
+		final int length = Array.getLength(array);
+		if (from < 0) from = 0;
+		if (to > length) to = length;
+		if (OFF_HEAP_ARRAYS) {
+			final OffHeapArrayShadows.Shadow shadow = reader.offHeapArrayStateCache.get(array);
+			if (shadow != null) {
+				long last = 0L;
+				for (int i = from; i < to; i++) {
+					final long write = OffHeapArrayShadows.get(shadow, i);
+					if (write != last && write != 0L) {
+						checkPackedArrayRead(write, reader, wCache);
+					}
+					last = write;
+				}
+			}
+		} else if (ARRAY_SHADOW_OBJECTS) {
+			final AdaptiveArrayShadow shadow = reader.adaptiveArrayStateCache.get(array);
+			if (shadow != null) {
+				State last = null;
+				for (int i = from; i < to; i++) {
+					final State write = shadow.get(i, reader);
+					if (write != last && write != null) {
+						checkArrayRead(write, reader, wCache, null);
+					}
+					last = write;
+				}
+			}
+		} else {
+			final State[][] states = reader.arrayIndexStateCache.get(array);
+			if (states != null) {
+				State last = null;
+				for (int i = from; i < to; ) {
+					final State[] page = states[i >>> ArrayShadows.PAGE_BITS];
+					final int end = Math.min(to, ((i >>> ArrayShadows.PAGE_BITS) + 1) << ArrayShadows.PAGE_BITS);
+					if (page != null) {
+						for (; i < end; i++) {
+							final State write = page[i & ArrayShadows.PAGE_MASK];
+							if (write != last && write != null) {
+								checkArrayRead(write, reader, wCache, null);
+							}
+							last = write;
+						}
+					}
+					i = end;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Bulk array write hook (System.arraycopy, Arrays.fill, and the results of
+	 * Arrays.copyOf* and clone) for elements [from, to) of array, clamped to its
+	 * bounds. Works under FINE and COARSE tracking. Called after the operation
+	 * returns, so the range is one it actually wrote.
+	 */
+	public static void arrayRangeWrite(final Object array, int from, int to, final State currentState, final ThreadState writer) {
+		if (array == null || !array.getClass().isArray()) {
+			return;
+		}
+		if (PROFILE) {
+			bulkWriteCounter.inc();
+		}
+		if (COARSE_ARRAYS) {
+			coarseArrayWrite(array, currentState, writer);
+			return;
+		}
+		final int length = Array.getLength(array);
+		if (from < 0) from = 0;
+		if (to > length) to = length;
+		if (from >= to) {
+			return;
+		}
+		if (PROFILE) {
+			bulkWriteElementCounter.add(to - from);
+		}
+		if (OFF_HEAP_ARRAYS) {
+			OffHeapArrayShadows.setRange(offHeapShadow(array, writer), from, to, currentState.word);
+		} else if (ARRAY_SHADOW_OBJECTS) {
+			adaptiveShadow(array, writer).setRange(from, to, currentState);
+		} else {
+			ArrayShadows.setRange(pageDirectory(array, writer), from, to, currentState);
+		}
+	}
+
+	/**
+	 * Write hook for fields of COARSE objects with -objectGrouping=AUTO,
+	 * called when the group shadow old is not the current state. Returns the
+	 * new group shadow: the current state, or State.SPLIT once the group has
+	 * been written by more than one thread.
+	 */
+	public static State coarseFieldWrite(final Object obj, final State old, final State current, final String on, final String group) {
+		return SplitObjectShadows.write(obj, old, current, on, group);
+	}
+	/**
+	 * Read hook for fields of COARSE objects whose group shadow is State.SPLIT.
+	 */
+	public static void splitFieldRead(final Object obj, final State read, final String on, final String group) {
+		final State write = SplitObjectShadows.read(obj, on, group);
+		if (write == null || (write.thread == read.thread && !INTRA_THREAD)) {
+			return;
+		}
+		if (PROFILE) {
+			fieldCommCounter.inc();
+		}
+		checkFieldRead(write, read, on);
 	}
 
 	// TODO cached write array and cached read array? or is the linkage the key?
 	// TODO Skip the wCache parameter and just do the field lookup if needed?
 	// OK if array == null. Slower, but the program is about to throw a NullPointerException anyway.
-	public static void coarseArrayRead(final Object array, final ThreadState reader, final BitVectorIntSet wCache) {
+	public static void coarseArrayRead(final Object array, final ThreadState reader, final ConcurrentBitVectorIntSet wCache) {
 		if (PROFILE) {
 			arrayReadCounter.inc();
 		}
@@ -222,7 +502,9 @@ public class RuntimeMonitor {
 		//  if no array state caching, push the null check back to bytecode.
 		Ref<State> stateRef = threadState.arrayStateCache.get(array);
 		if (stateRef != null) {
-			stateRef.contents = currentState;
+			if (!ELIDE_SAME_STATE_WRITES || stateRef.contents != currentState) {
+				stateRef.contents = currentState;
+			}
 		} else {
 			stateRef = new Ref<State>();
 			stateRef.contents = currentState;
@@ -234,6 +516,18 @@ public class RuntimeMonitor {
 	}
 
 
+	/**
+	 * Get the LockState of lock, or null if it has never been acquired by
+	 * instrumented code. Instrumented objects carry their own LockState;
+	 * others are looked up in lockStates.
+	 */
+	private static LockState lockState(final Object lock, final ThreadState holder) {
+		if (lock instanceof LockStateHolder) {
+			return ((LockStateHolder)lock).__osha_get_lock_state();
+		}
+		return holder.lockStateCache.get(lock);
+	}
+
 	/**
 	 * Lock release hook.  Since things are well-scoped in Java, we'll just do all the work
 	 * in acquire.  The only thinw we need to do here is hit the reentrancy counter.
@@ -247,17 +541,24 @@ public class RuntimeMonitor {
 	 */
 	public static void release(final Object lock, final ThreadState holder) {
 		try {
-			final LockState ls = holder.lockStateCache.get(lock);
+			final LockState ls = lockState(lock, holder);
 			Assert.assertTrue(ls.getDepth() >= 0, "Bad lock scoping");
     	    ls.decrementDepth();
 		} catch (Exception t) {
 			Assert.fail(t);
 		}
 	}
-	public static void release(final ObjectWithState lock, final ThreadState holder) {
-	    lock.__osha_lock_state.decrementDepth();
-		final int depth = lock.__osha_lock_state.getDepth();
-		if (depth < 0) Assert.fail("Bad lock scoping");
+	/**
+	 * Release hook for synchronized methods of instrumented classes.
+	 */
+	public static void release(final LockStateHolder lock, final ThreadState holder) {
+		try {
+			final LockState ls = lock.__osha_get_lock_state();
+			Assert.assertTrue(ls.getDepth() >= 0, "Bad lock scoping");
+    	    ls.decrementDepth();
+		} catch (Exception t) {
+			Assert.fail(t);
+		}
 	}
 
 	/**
@@ -268,6 +569,10 @@ public class RuntimeMonitor {
 	 * @param lock
 	 */
 	public static void acquire(final Object lock, final ThreadState holder, final State holderState) {
+		if (lock instanceof LockStateHolder) {
+			acquire((LockStateHolder)lock, holder, holderState);
+			return;
+		}
 		try {
 			if (PROFILE) {
                 lockCounter.inc();
@@ -275,108 +580,99 @@ public class RuntimeMonitor {
 			// get the lock state
 			final LockState lockState = holder.lockStateCache.get(lock);
 			if (lockState == null) {
-				final LockState ls = new LockState(holder.state);
+				final LockState ls = new LockState(holderState);
 				ls.setDepth(1);
 				Assert.assertTrue(
 						holder.lockStateCache.putIfAbsent(lock, ls) == null);					
 				return;
 			}
-			
-			// check and update the lock state.
-			if (lockState.getDepth() < 0) {
-				Assert.fail("Bad lock scoping.");
-			} else if (lockState.getDepth() == 0) {
-				// First (non-reentrant) acquire by this thread.
-				// NOTE: this is atomic, because we hold lock and no other thread can call
-				// the acquire or release hooks until they hold the lock.
-				final State lastHolderState = lockState.lastHolder;
-				// if the last holder was in the current state:
-				if (lastHolderState == holderState) {
-					// no check needed, just increment depth to 1.
-					lockState.incrementDepth();
-				} else { // if the last holder was in a different state than the current state:
-					// set the lock state's holder to us.
-					lockState.lastHolder = holderState;
-					// increment depth to 1
-					lockState.incrementDepth();
-					// if last holder was not the same thread
-					if (INTRA_THREAD || lastHolderState.thread != holder) {
+			acquired(lockState, holder, holderState);
+		} catch (IllegalCommunicationException e) {
+			throw e;
+		} catch (Throwable t) {
+			Assert.fail(t);
+		}
+	}
+	/**
+	 * Acquire hook for instrumented objects: synchronized methods of instrumented
+	 * classes, and monitorenter on instrumented objects.
+	 */
+	public static void acquire(final LockStateHolder lock, final ThreadState holder, final State holderState) {
+		try {
+			if (PROFILE) {
+                lockCounter.inc();
+                lockFieldCounter.inc();
+            }
+			// We hold lock, so no other thread touches its lock state.
+			final LockState lockState = lock.__osha_get_lock_state();
+			if (lockState == null) {
+				final LockState ls = new LockState(holderState);
+				ls.setDepth(1);
+				lock.__osha_set_lock_state(ls);
+				return;
+			}
+			acquired(lockState, holder, holderState);
+		} catch (IllegalCommunicationException e) {
+			throw e;
+		} catch (Throwable t) {
+			Assert.fail(t);
+		}
+	}
+	
+	/**
+	 * Check and update the lock state of a lock just acquired by holder.
+	 */
+	private static void acquired(final LockState lockState, final ThreadState holder, final State holderState) {
+		if (lockState.getDepth() < 0) {
+			Assert.fail("Bad lock scoping.");
+		} else if (lockState.getDepth() == 0) {
+			// First (non-reentrant) acquire by this thread.
+			// NOTE: this is atomic, because we hold lock and no other thread can call
+			// the acquire or release hooks until they hold the lock.
+			final State lastHolderState = lockState.lastHolder;
+			// if the last holder was in the current state:
+			if (lastHolderState == holderState) {
+				// no check needed, just increment depth to 1.
+				lockState.incrementDepth();
+			} else { // if the last holder was in a different state than the current state:
+				// set the lock state's holder to us.
+				lockState.lastHolder = holderState;
+				// increment depth to 1
+				lockState.incrementDepth();
+				// if last holder was not the same thread
+				if (INTRA_THREAD || lastHolderState.thread != holder) {
+					if (PROFILE) {
+						lockCommCounter.inc();
+					}
+					
+					// if communication is not allowed, throw an exception.
+					if (!holderState.stack.writerCache.contains(lastHolderState.getStackID())) {
 						if (PROFILE) {
-							lockCommCounter.inc();
+							lockSlowPathCounter.inc();
 						}
-						
-						// if communication is not allowed, throw an exception.
-						if (!holderState.stack.writerCache.contains(lastHolderState.getStackID())) {
-							if (PROFILE) {
-								lockSlowPathCounter.inc();
-							}
-							if (!holderState.stack.checkWriter(lastHolderState.stack)) {
-							    error(new IllegalSynchronizationException(lastHolderState, holderState));
-							}
+						if (!holderState.stack.checkWriter(lastHolderState.stack)) {
+						    error(new IllegalSynchronizationException(lastHolderState, holderState));
 						}
 					}
-					
 				}
-			} else { // depth is > 0. This is a reentrant acquire
-				lockState.incrementDepth();
+				
 			}
-
-		} catch (IllegalCommunicationException e) {
-			throw e;
-		} catch (Throwable t) {
-			Assert.fail(t);
+		} else { // depth is > 0. This is a reentrant acquire
+			lockState.incrementDepth();
 		}
 	}
-//	public static void acquire(final ObjectWithState lock, final ThreadState holder, final State holderState) {
-//		LockState ls = lock.__osha_lock_state;
-//		if (ls == null) {
-//			ls = new LockState(holderState);
-//			ls.setDepth(1);
-//			lock.__osha_lock_state = ls;
-//		} else if (ls.getDepth() < 0) {
-//			Util.fail("Bad lock scoping.");
-//		} else if (ls.getDepth() == 0) {
-//			// First (non-reentrant) acquire by this thread.
-//			// NOTE: this is atomic, because we hold lock and no other thread can call
-//			// the acquire or release hooks until they hold the lock.
-//			final State lastHolderState = ls.lastHolder;
-//			if (lastHolderState != holderState) {
-//				ls.lastHolder = holderState;
-//				ls.incrementDepth();
-//				if (RECORD) {
-//					recordEdge(lastHolderState.stack.method, holderState.stack.method);
-//				}
-//				if (lastHolderState != null && lastHolderState.thread != holder) {
-//					if (checkStacks(lastHolderState.stack, holderState.stack)) {
-//						throw new IllegalSynchronizationException(
-//								lastHolderState.thread, "FIX ME", 
-//								holder, "FIX ME"
-//						);
-//					}
-//				}
-//
-//			} else {
-//				ls.incrementDepth();
-//			}
-//		} else {
-//			// if we're already reentrant, just go one deeper.
-//			ls.incrementDepth();
-//		}
-//	}
-//	
-	// TODO other granularity version.
+	
 	/**
 	 * Hook to call before making a call to wait.
 	 */
 	public static int prewait(final Object lock, final ThreadState holder) {
-		final LockState lockState = holder.lockStateCache.get(lock);
+		final LockState lockState = lockState(lock, holder);
 		Assert.assertTrue(lockState.getDepth() > 0, "Bad prewait");
 		final int depth = lockState.getDepth();
 		lockState.setDepth(0);
 		return depth;
 	}
 	
-	// TODO other granularity version.
 	/**
 	 * Hook to call when returning from a call to wait.
 	 */
@@ -384,7 +680,7 @@ public class RuntimeMonitor {
 		if (PROFILE) {
 			lockCounter.inc();
 		}
-		final LockState lockState = ts.lockStateCache.get(lock);
+		final LockState lockState = lockState(lock, ts);
 		Assert.assertTrue(lockState.getDepth() == 0, "Bad postwait");
 		lockState.setDepth(resumeDepth);
 		final State lastHolderState = lockState.lastHolder;
@@ -418,7 +714,24 @@ public class RuntimeMonitor {
 	}
 
 	public static State getCurrentState() {
-		return threadState.get().state;
+		return threadState.get().currentState();
+	}
+	
+	/**
+	 * Hook to get the packed shadow word for the current State.
+	 * @return
+	 */
+	public static long getCurrentShadowWord() {
+		return threadState.get().currentState().word;
+	}
+	
+	/**
+	 * Hook to get the State of the current frame with -lazyStacks.
+	 * @param ts
+	 * @return
+	 */
+	public static State materialize(final ThreadState ts) {
+		return ts.materialize();
 	}
 
 	/**
@@ -595,12 +908,15 @@ public class RuntimeMonitor {
 					(double)(arrayReadCounter.value() - arrayCommCounter.value()) / ar * 100.0);
 			Util.logf("Comm. fast path array reads: %f%%", (double)(arrayCommCounter.value() - arraySlowPathCounter.value()) / ar * 100.0);
 			Util.logf("Comm. slow path array reads: %f%%", (double)arraySlowPathCounter.value() / ar * 100.0);
+			Util.logf("Bulk array reads:  %d", bulkReadCounter.value());
+			Util.logf("Bulk array writes: %d (%d elements)", bulkWriteCounter.value(), bulkWriteElementCounter.value());
 			Util.log("");
 			double lr = (double)lockCounter.value();
 			Util.logf("Thread-local lock acquires:    %f%%", 
 					(double)(lockCounter.value() - lockCommCounter.value()) / lr * 100.0);
 			Util.logf("Comm. fast path lock acquires: %f%%", (double)(lockCommCounter.value() - lockSlowPathCounter.value()) / lr * 100.0);
 			Util.logf("Comm. slow path lock acquires: %f%%", (double)lockSlowPathCounter.value() / lr * 100.0);
+			Util.logf("Lock acquires of instrumented objects: %f%%", (double)lockFieldCounter.value() / lr * 100.0);
 
 			if (DirectMappedShadowCache.COUNT) {
 				Util.logf("Array accesses: %d", ThreadState.ARRAY_HITS.value() + ThreadState.ARRAY_MISSES.value());
@@ -616,6 +932,67 @@ public class RuntimeMonitor {
 				Util.logf("      hit rate: %f%%", 
 						100.0 * (float)ThreadState.LOCK_HITS.value() / (float)(ThreadState.LOCK_HITS.value() + ThreadState.LOCK_MISSES.value()));
 				Util.logf("    cache size: %d", Config.lockCacheSizeOption.get());
+				if (Config.shadowCacheWaysOption.get() > 1) {
+					Util.logf("    cache ways: %d (+ %d victims)", Config.shadowCacheWaysOption.get(), Config.shadowCacheVictimsOption.get());
+				}
+			}
+			if (ThreadState.COUNT_STACK_CACHE) {
+				Util.logf("Stack pushes: %d", ThreadState.STACK_HITS.value() + ThreadState.STACK_MISSES.value());
+				Util.logf("    cache hits: %d", ThreadState.STACK_HITS.value());
+				Util.logf("  cache misses: %d", ThreadState.STACK_MISSES.value());
+				Util.logf("      hit rate: %f%%", 
+						100.0 * (float)ThreadState.STACK_HITS.value() / (float)(ThreadState.STACK_HITS.value() + ThreadState.STACK_MISSES.value()));
+				Util.logf("    cache size: %d", Config.stackCacheSizeOption.get());
+			}
+			if (ArrayShadows.COUNT_BYTES) {
+				Util.logf("Fine array shadow elements: %d", ArrayShadows.shadowedElements.value());
+				Util.logf("          shadow bytes (est.): %d", ArrayShadows.shadowBytes.value());
+				Util.logf("     shadow bytes per element: %f", 
+						(double)ArrayShadows.shadowBytes.value() / (double)ArrayShadows.shadowedElements.value());
+				Util.logf("                    page size: %d", Config.arrayPageSizeOption.get());
+			}
+			ShadowStores.report();
+			InlineCache.report();
+			if (SplitObjectShadows.COUNT) {
+				Util.logf("Split coarse objects: %d", SplitObjectShadows.splitObjects.value());
+				Util.logf("   split field writes: %d", SplitObjectShadows.splitWrites.value());
+				Util.logf("    split field reads: %d", SplitObjectShadows.splitReads.value());
+			}
+			if (OFF_HEAP_ARRAYS) {
+				Util.logf("Off-heap array shadow bytes in use: %d", OffHeapArrayShadows.bytesInUse());
+				Util.logf("                              peak: %d", OffHeapArrayShadows.peakBytes());
+				Util.logf("                          reserved: %d", OffHeapArrayShadows.bytesReserved());
+			}
+			if (ARRAY_SHADOW_OBJECTS && AdaptiveArrayShadow.COUNT) {
+				Util.logf("Adaptive array shadows: %d", AdaptiveArrayShadow.created.value());
+				Util.logf("                 split: %d", AdaptiveArrayShadow.splits.value());
+				Util.logf("                frozen: %d", AdaptiveArrayShadow.freezes.value());
+				Util.logf("                thawed: %d", AdaptiveArrayShadow.thaws.value());
+				Util.logf("             untracked: %d", AdaptiveArrayShadow.untracked.value());
+				Util.logf("                coarse: %d", AdaptiveArrayShadow.coarse.value());
+			}
+			if (ThreadState.COUNT_FRAMES) {
+				Util.logf("Lazy frames entered: %d", ThreadState.FRAMES_ENTERED.value());
+				Util.logf("        materialized: %d", ThreadState.FRAMES_MATERIALIZED.value());
+				Util.logf("   materialized rate: %f%%", 
+						100.0 * (float)ThreadState.FRAMES_MATERIALIZED.value() / (float)ThreadState.FRAMES_ENTERED.value());
+			}
+			if (Stack.COUNT_STACKS) {
+				Util.logf("Stacks created: %d", Stack.stacksCreated.value());
+				Util.logf("  collapsed pushes: %d", Stack.collapsedPushes.value());
+
+				Util.logf("Stack checks: %d", Stack.memo2Hits.value());
+				Util.logf("    full stack walks: %d", Stack.stackWalks.value());
+				Util.logf("  verdict cache hits: %d", Stack.verdictHits.value());
+				Util.logf("            hit rate: %f%%", 
+						100.0 * (float)Stack.verdictHits.value() / (float)(Stack.verdictHits.value() + Stack.verdictMisses.value()));
+				Util.logf("          cache size: %d", Config.verdictCacheSizeOption.get());
+
+				Util.logf("Stack id policy: %s", Config.stackIdPolicyOption.get());
+				Util.logf("    ids assigned: %d", Stack.idsAssigned.value());
+				Util.logf("      reads saved: %d", 
+						fieldCommCounter.value() - fieldSlowPathCounter.value() + arrayCommCounter.value() - arraySlowPathCounter.value());
+				Util.logf("  unpromoted checks: %d", Stack.unpromotedChecks.value());
 			}
 
 		}
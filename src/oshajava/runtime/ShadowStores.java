@@ -0,0 +1,118 @@
+/*
+
+Copyright (c) 2010, Benjamin P. Wood and Adrian Sampson, University of Washington
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the University of Washington nor the names of its
+   contributors may be used to endorse or promote products derived from this
+   software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+*/
+
+
+package oshajava.runtime;
+
+import java.util.ArrayList;
+
+import oshajava.support.acme.util.Util;
+import oshajava.util.WeakConcurrentIdentityHashMap;
+
+/**
+ * Factory and background cleaner for the weak identity maps that hold
+ * shadows for objects without shadow fields (arrays, uninstrumented locks,
+ * split objects).
+ * 
+ * With -shadowStoreCleaner=N, the maps queue the weak keys of collected
+ * objects, and a low-priority daemon thread expunges their entries every
+ * N ms, so the maps stay proportional to the live objects without any
+ * cleanup work on the application's threads. -shadowStoreGC instead
+ * sweeps a whole segment when it fills up.
+ * 
+ * @author bpw
+ *
+ */
+final class ShadowStores {
+	
+	private static final int CLEANER_INTERVAL = Config.shadowStoreCleanerOption.get();
+	
+	private static final ArrayList<String> names = new ArrayList<String>();
+	private static final ArrayList<WeakConcurrentIdentityHashMap<Object,?>> stores = new ArrayList<WeakConcurrentIdentityHashMap<Object,?>>();
+	private static Cleaner cleaner;
+	
+	/**
+	 * Make a new shadow store, reported under name.
+	 */
+	static synchronized <V> WeakConcurrentIdentityHashMap<Object,V> create(final String name) {
+		final WeakConcurrentIdentityHashMap<Object,V> store = 
+			new WeakConcurrentIdentityHashMap<Object,V>(Config.shadowStoreGCoption.get(), CLEANER_INTERVAL > 0);
+		names.add(name);
+		stores.add(store);
+		if (CLEANER_INTERVAL > 0 && cleaner == null) {
+			cleaner = new Cleaner();
+			cleaner.start();
+		}
+		return store;
+	}
+	
+	private static synchronized WeakConcurrentIdentityHashMap<?,?>[] stores() {
+		return stores.toArray(new WeakConcurrentIdentityHashMap<?,?>[stores.size()]);
+	}
+	
+	private static final class Cleaner extends Thread {
+		Cleaner() {
+			super("oshajava shadow store cleaner");
+			setDaemon(true);
+			setPriority(Thread.MIN_PRIORITY);
+		}
+		
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(CLEANER_INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+				for (final WeakConcurrentIdentityHashMap<?,?> store : stores()) {
+					store.expunge();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Log live and stale entries of each shadow store.
+	 */
+	static synchronized void report() {
+		for (int i = 0; i < stores.size(); i++) {
+			final WeakConcurrentIdentityHashMap<Object,?> store = stores.get(i);
+			final int entries = store.entryCount(), stale = store.staleCount();
+			if (entries > 0 || store.expungedCount() > 0) {
+				Util.logf("Shadow store %s: %d live, %d stale, %d expunged", 
+						names.get(i), entries - stale, stale, store.expungedCount());
+			}
+		}
+	}
+
+}
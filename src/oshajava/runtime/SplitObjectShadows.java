@@ -0,0 +1,125 @@
+/*
+
+Copyright (c) 2010, Benjamin P. Wood and Adrian Sampson, University of Washington
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the University of Washington nor the names of its
+   contributors may be used to endorse or promote products derived from this
+   software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+*/
+
+
+package oshajava.runtime;
+
+import java.util.IdentityHashMap;
+
+import oshajava.util.WeakConcurrentIdentityHashMap;
+import oshajava.util.count.Counter;
+
+/**
+ * Per-field states for coarse objects whose group shadows have split. See
+ * -objectGrouping=AUTO.
+ * 
+ * A group shadow holds the State of the last write to any field in its
+ * group. When a field in the group is written by a different thread than
+ * the one that last wrote the group, the group's shadow is replaced by
+ * State.SPLIT and its object gets a side record here. The record keeps the
+ * group's last State as a summary for fields not written since the split,
+ * plus a State for each field written since.
+ * 
+ * Objects written by only one thread never leave their shadow words.
+ * 
+ * @author bpw
+ *
+ */
+final class SplitObjectShadows {
+	
+	public static final Counter splitObjects = new Counter("Coarse objects split to per-field shadows");
+	public static final Counter splitWrites = new Counter("Writes to fields of split objects");
+	public static final Counter splitReads = new Counter("Reads of fields of split objects");
+	public static final boolean COUNT = RuntimeMonitor.PROFILE && true;
+	
+	/**
+	 * Split groups of one object. Group and field names are constants from
+	 * the instrumented code, so they are compared by identity.
+	 */
+	private static final class Split {
+		final IdentityHashMap<String,State> summaries = new IdentityHashMap<String,State>(2);
+		final IdentityHashMap<String,State> fields = new IdentityHashMap<String,State>();
+	}
+	
+	private static final WeakConcurrentIdentityHashMap<Object,Split> splits = 
+		ShadowStores.create("splitObjects");
+	
+	/**
+	 * Record a write of field in obj by current, where old is the shadow of
+	 * the field's group. Returns the new group shadow.
+	 */
+	static State write(final Object obj, final State old, final State current, final String field, final String group) {
+		if (old != State.SPLIT && (old == null || old.thread == current.thread)) {
+			return current;
+		}
+		final Split split = split(obj);
+		synchronized (split) {
+			if (old != State.SPLIT) {
+				split.summaries.put(group, old);
+			} else if (COUNT) {
+				splitWrites.inc();
+			}
+			split.fields.put(field, current);
+		}
+		return State.SPLIT;
+	}
+	
+	/**
+	 * Get the State of the last write of field, in group, of the split object
+	 * obj, or null if none.
+	 */
+	static State read(final Object obj, final String field, final String group) {
+		if (COUNT) splitReads.inc();
+		final Split split = splits.get(obj);
+		if (split == null) {
+			return null;
+		}
+		synchronized (split) {
+			final State s = split.fields.get(field);
+			return s == null ? split.summaries.get(group) : s;
+		}
+	}
+	
+	private static Split split(final Object obj) {
+		Split split = splits.get(obj);
+		if (split == null) {
+			split = new Split();
+			final Split other = splits.putIfAbsent(obj, split);
+			if (other != null) {
+				return other;
+			}
+			if (COUNT) splitObjects.inc();
+		}
+		return split;
+	}
+
+}
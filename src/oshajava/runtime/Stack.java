@@ -40,6 +40,8 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import oshajava.spec.ModuleSpec;
 import oshajava.spec.Spec;
@@ -47,9 +49,10 @@ import oshajava.spec.names.MethodDescriptor;
 import oshajava.spec.names.TypeDescriptor;
 import oshajava.support.acme.util.Assert;
 import oshajava.support.acme.util.Util;
-import oshajava.support.acme.util.identityhash.ConcurrentIdentityHashMap;
 import oshajava.util.BitVectorIntSet;
+import oshajava.util.ConcurrentBitVectorIntSet;
 import oshajava.util.ExpandableGraph;
+import oshajava.util.IdRegistry;
 import oshajava.util.Graph;
 import oshajava.util.Py;
 import oshajava.util.PyWriter;
@@ -65,6 +68,7 @@ public class Stack {
 	private static final List<Stack> allStacks = new LinkedList<Stack>();
 
 	public static final Counter stacksCreated = new Counter("Distinct stacks created");
+	public static final Counter collapsedPushes = new Counter("Pushes collapsed into a recursive frame");
 	public static final DistributionCounter communicatingStackDepths = new DistributionCounter("Communicating stack depths");
 	public static final DistributionCounter readerStackDepths = new DistributionCounter("Reader stack depths (per comm. pair)");
 	public static final DistributionCounter writerStackDepths = new DistributionCounter("Writer stack depths (per comm. pair)");
@@ -81,12 +85,39 @@ public class Stack {
 	
 	public static final Counter stackWalks = new Counter("Full stack walks");
 	public static final Counter memo2Hits = new Counter("Level 2 memo hits");
+	public static final Counter verdictHits = new Counter("Verdict cache hits");
+	public static final Counter verdictMisses = new Counter("Verdict cache misses");
+	public static final Counter idsAssigned = new Counter("Stack ids assigned");
+	public static final Counter unpromotedChecks = new Counter("Successful checks of writer stacks without ids");
 	
 	public static final boolean COUNT_STACKS = RuntimeMonitor.PROFILE && true;
 	
+	private static final boolean COLLAPSE_RECURSION = Config.collapseRecursionOption.get();
+	
+	/**
+	 * Counter for stack serials. (Must be initialized before root.)
+	 */
+	private static final AtomicInteger serials = new AtomicInteger();
+	
+	/**
+	 * With -packedShadows or -offHeapArrays, shadow words name writer stacks by
+	 * serial, and writer caches hold serials instead of ids.
+	 */
+	static final boolean PACKED_SHADOWS = Config.packedShadowsOption.get() || Config.offHeapArraysOption.get();
+	
+	/**
+	 * Canonical stacks by serial, for resolving packed shadow words.
+	 * (Must be initialized before root.)
+	 */
+	private static final IdRegistry<Stack> stacksBySerial = PACKED_SHADOWS ? new IdRegistry<Stack>(1 << 10) : null;
+	
 	protected static final Stack root = new Stack(-1, null);
 	protected static final Stack classInitializer = new Stack(-1, null);
 	static {
+		if (PACKED_SHADOWS) {
+			stacksBySerial.put(root.serial, root);
+			stacksBySerial.put(classInitializer.serial, classInitializer);
+		}
 		if (RECORD) {
 			synchronized (allStacks) {
 				allStacks.add(root);
@@ -107,12 +138,67 @@ public class Stack {
 	public final int methodUID;
 	
 	/**
-	 * The id of this call stack. Only set for real once this tack has communicated a bit.
+	 * Hash of (methodUID, parent), used by the hash cons table.
+	 */
+	final int hash;
+	
+	/**
+	 * Unique serial number of this stack, used to key the verdict cache and
+	 * packed shadow words. Nonpositive once serials have overflowed, in
+	 * which case the stack does not use the verdict cache.
+	 */
+	final int serial = serials.incrementAndGet();
+	
+	/**
+	 * Number of frames on this stack above root (or classInitializer).
+	 */
+	public final int depth;
+	
+	/**
+	 * Segment summary: the outermost frame of the run of consecutive frames
+	 * from this frame's module that starts at this frame. Root and
+	 * classInitializer are their own segment ends.
+	 */
+	private final Stack segmentEnd;
+	
+	/**
+	 * Segment summary: ids (within the module) of the methods on the frames
+	 * from this one through segmentEnd. Shared with the parent when it
+	 * already contains this method. Never modified once built. null for
+	 * root and classInitializer.
+	 */
+	private final BitVectorIntSet segmentMethods;
+	
+	/**
+	 * The id of this call stack. Only set for real once this stack has been
+	 * promoted by the id policy. Written once, by the thread that promotes it.
+	 * Other threads may see Integer.MAX_VALUE for a while and take the slow path.
 	 */
 	public int id = Integer.MAX_VALUE;
 	
-	private static byte ID_THRESHOLD = 8;
-	private byte writeCounter = 0;
+	private static final Config.StackIdPolicy ID_POLICY = Config.stackIdPolicyOption.get();
+	private static final int ID_THRESHOLD = Config.stackIdThresholdOption.get();
+	private static final int ID_SAMPLE_RATE = Config.stackIdSampleRateOption.get();
+	private static final int ID_SAMPLES = 2;
+	static {
+		if (ID_SAMPLE_RATE < 1) throw new IllegalArgumentException("The stack id sample rate must be at least 1. (" + ID_SAMPLE_RATE + " is not.)");
+	}
+	
+	/**
+	 * Count of successful checks of this stack as a writer (or samples of
+	 * them), or PROMOTED once the stack has been claimed for an id.
+	 */
+	private volatile int writeCounter = 0;
+	private static final int PROMOTED = -1;
+	private static final AtomicIntegerFieldUpdater<Stack> WRITE_COUNTER =
+		AtomicIntegerFieldUpdater.newUpdater(Stack.class, "writeCounter");
+	
+	/**
+	 * Tick for the SAMPLED policy. Racy on purpose: threads may lose each
+	 * other's ticks (or wrap it around), which only shifts which checks get
+	 * sampled. Promotion still takes ID_SAMPLES sampled checks of the stack.
+	 */
+	private static int sampleTick = 0;
 	
 	/**
 	 * Set of IDs of writer stacks that this stack is allowed to read from. Used 
@@ -123,17 +209,52 @@ public class Stack {
 	 * have it in the (actual hardware) cache.  If we load the readerset from
 	 * a state representing a write, chances are it's not in the cache...
 	 */
-	public transient final BitVectorIntSet writerCache = new BitVectorIntSet();
+	public transient final ConcurrentBitVectorIntSet writerCache = new ConcurrentBitVectorIntSet();
 	
-	private final HashSet<Stack> writerMemoTable = new HashSet<Stack>();
+	/**
+	 * Set of writer stacks this stack is known to be allowed to read from.
+	 * Lock-free, so a reader stack shared by many threads does not convoy here.
+	 */
+	private final StackTable writerMemoTable = new StackTable(4);
 	
 	private Stack(final int methodUID, final Stack parent) {
 		this.methodUID = methodUID;
 		this.parent = parent;
+		this.hash = parent == null ? System.identityHashCode(this) : StackTable.hash(methodUID, parent);
+		if (parent == null) {
+			depth = 0;
+			segmentEnd = this;
+			segmentMethods = null;
+		} else {
+			depth = parent.depth + 1;
+			final int methodID = Spec.getMethodID(methodUID);
+			if (parent.segmentMethods != null && Spec.getModuleID(parent.methodUID) == Spec.getModuleID(methodUID)) {
+				segmentEnd = parent.segmentEnd;
+				if (parent.segmentMethods.contains(methodID)) {
+					segmentMethods = parent.segmentMethods;
+				} else {
+					segmentMethods = new BitVectorIntSet();
+					segmentMethods.addAll(parent.segmentMethods);
+					segmentMethods.add(methodID);
+				}
+			} else {
+				// Module boundary.
+				segmentEnd = this;
+				segmentMethods = new BitVectorIntSet();
+				segmentMethods.add(methodID);
+			}
+		}
 		
 		if (COUNT_STACKS) stacksCreated.inc();
 	}
 	
+	/**
+	 * Make a Stack that is never handed out to the program. (For sentinels.)
+	 */
+	static Stack sentinel() {
+		return new Stack(-1, null);
+	}
+	
 	/**
 	 * Get the caller stack of a stack.
 	 * @param stack
@@ -150,53 +271,126 @@ public class Stack {
 	 * @return
 	 */
 	public static Stack push(final int methodUID, final Stack parent) {
-		ConcurrentIdentityHashMap<Stack,Stack>  t = hashConsTable.get(methodUID);
-		if (t == null) {
-			t = new ConcurrentIdentityHashMap<Stack,Stack>();
-			final ConcurrentIdentityHashMap<Stack,Stack> s = hashConsTable.putIfAbsent(methodUID, t);
-			if (s != null) t = s;
+		if (COLLAPSE_RECURSION) {
+			final Stack collapsed = collapse(methodUID, parent);
+			if (collapsed != null) {
+				if (COUNT_STACKS) {
+					collapsedPushes.inc();
+				}
+				return collapsed;
+			}
 		}
-		Stack stack = t.get(parent);
+		Stack stack = hashConsTable.get(methodUID, parent);
 		if (stack == null) {
-			stack = new Stack(methodUID,parent);
-			final Stack s = t.putIfAbsent(parent, stack);
-			if (s == null) {
+			stack = new Stack(methodUID, parent);
+			final Stack s = hashConsTable.putIfAbsent(stack);
+			if (s != null) {
+				return s;
+			}
+			if (PACKED_SHADOWS) {
+				stacksBySerial.put(stack.serial, stack);
+			}
+			if (RECORD) {
 				synchronized (allStacks) {
 					allStacks.add(stack);
 				}
-				return stack;
-			} else {
+			}
+		}
+		return stack;
+	}
+	
+	/**
+	 * Get the canonical stack with the given serial (-packedShadows only).
+	 * @param serial
+	 * @return the stack, or null if there is none.
+	 */
+	static Stack bySerial(final int serial) {
+		return stacksBySerial.get(serial);
+	}
+	
+	/**
+	 * The key for this stack in writer caches: its serial with
+	 * -packedShadows, else its id (Integer.MAX_VALUE until promoted).
+	 */
+	int cacheKey() {
+		return PACKED_SHADOWS ? serial : id;
+	}
+	
+	/**
+	 * If pushing methodUID on parent would repeat a method already in the
+	 * parent's module segment, find the frame for that method further down
+	 * the segment that has the same segment method set. That frame has the
+	 * same module, segment end and segment method set as the pushed stack
+	 * would, so every stack walk treats the two alike.
+	 * 
+	 * @return the frame to reuse, or null if the push cannot be collapsed.
+	 */
+	private static Stack collapse(final int methodUID, final Stack parent) {
+		final BitVectorIntSet set = parent.segmentMethods;
+		if (set == null || Spec.getModuleID(parent.methodUID) != Spec.getModuleID(methodUID) 
+				|| !set.contains(Spec.getMethodID(methodUID))) {
+			return null;
+		}
+		// Sets are shared down a segment until a method is added, so identity
+		// tells where the set changes. Root's set is null, so this stops.
+		for (Stack s = parent; s.segmentMethods == set; s = s.parent) {
+			if (s.methodUID == methodUID) {
 				return s;
 			}
-		} else {
-			return stack;
 		}
+		return null;
 	}
 	
 	public int getDepth() {
-		if (this == root || this == classInitializer) {
-			return 0;
-		} else {
-			return 1 + parent.getDepth();
-		}
+		return depth;
 	}
 	
 	/**
-	 * Count a write in this stack. If we've passed a threshold,
-	 * give this stack an id so reads of its future writes will go
+	 * Count a successful check of this stack as a writer. If the id policy
+	 * says so, give this stack an id so reads of its future writes will go
 	 * down the fast path.
 	 * 
 	 * @return the current id
 	 */
-	private synchronized int countWrite() {
-		if (++writeCounter > ID_THRESHOLD) {
-			if(id == Integer.MAX_VALUE) {
-				synchronized(Stack.class) {
-					id = ++idCounter;
-				}
+	private int countWrite() {
+		final int id = this.id;
+		if (id != Integer.MAX_VALUE) {
+			return id;
+		}
+		if (COUNT_STACKS) {
+			unpromotedChecks.inc();
+		}
+		final int needed;
+		switch (ID_POLICY) {
+		case FIRST:
+			needed = 1;
+			break;
+		case SAMPLED:
+			if (++sampleTick % ID_SAMPLE_RATE != 0) {
+				return id;
+			}
+			needed = ID_SAMPLES;
+			break;
+		default:
+			needed = ID_THRESHOLD + 1;
+		}
+		int count, next;
+		do {
+			count = writeCounter;
+			if (count == PROMOTED) {
+				// Another thread is promoting it.
+				return this.id;
+			}
+			next = count + 1 >= needed ? PROMOTED : count + 1;
+		} while (!WRITE_COUNTER.compareAndSet(this, count, next));
+		if (next == PROMOTED) {
+			// We won the promotion.
+			this.id = idCounter.incrementAndGet();
+			if (COUNT_STACKS) {
+				idsAssigned.inc();
 			}
 		}
-		return id;
+		return this.id;
 	}
 	
 	/**
@@ -208,17 +402,10 @@ public class Stack {
 	 * @return
 	 */
 	public boolean checkWriter(Stack writer) {
-		final boolean yes;
-		synchronized (writerMemoTable) {
-			if (COUNT_STACKS) {
-				memo2Hits.inc();
-			}
-			yes = writerMemoTable.contains(writer);
+		if (COUNT_STACKS) {
+			memo2Hits.inc();
 		}
-		if (!yes) { //  really slow path: full stack traversal
-			if (COUNT_STACKS) {
-				stackWalks.inc();
-			}
+		if (!writerMemoTable.contains(writer)) { //  really slow path: full stack traversal
 			if (RECORD) {
 				synchronized (writer.allReaders) {
 					writer.allReaders.add(this);
@@ -228,10 +415,8 @@ public class Stack {
 //			if (StackCommMonitor.VISUALIZE) {
 //				StackCommMonitor.def.addCommunicationAndFlush(writer, this);
 //			}
-			if (walkStacks(writer, this, 0)) {
-				synchronized (writerMemoTable) {
-					writerMemoTable.add(writer);
-				}
+			if (checkVerdict(writer)) {
+				writerMemoTable.add(writer);
 				if (COUNT_STACKS) {
 					final int wd = writer.getDepth(), rd = getDepth();
 					communicatingStackDepths.add(wd);
@@ -245,136 +430,133 @@ public class Stack {
 			}
 		} // else moderately slow path.
 		// bump the writer's write count.
-		// if it has an id, add it to our cache.
+		// if it has an id, add it (or its serial) to our cache.
 		final int wid = writer.countWrite();
 		if (wid != Integer.MAX_VALUE) {
-			writerCache.add(wid);
+			writerCache.add(PACKED_SHADOWS ? writer.serial : wid);
 		}
 		return true;
 	}
 	
-	private static boolean walkStacks(final Stack writer, final Stack reader, final int segDepth) {
-		if (writer == root && reader == root) {
-			// Successfully walked to the roots of each stack.
-			return true;
+	/**
+	 * Check writer against this reader stack, consulting the global verdict
+	 * cache before walking the stacks.
+	 */
+	private boolean checkVerdict(final Stack writer) {
+		final boolean cacheable = USE_VERDICT_CACHE && writer.serial > 0 && serial > 0;
+		if (cacheable) {
+			final int verdict = verdictCache.lookup(writer.serial, serial);
+			if (verdict != VerdictCache.UNKNOWN) {
+				if (COUNT_STACKS) {
+					verdictHits.inc();
+				}
+				return verdict == VerdictCache.ALLOWED;
+			}
+			if (COUNT_STACKS) {
+				verdictMisses.inc();
+			}
 		}
-		if (writer == classInitializer || reader == classInitializer) {
-		    // Allow communication with class initializers.
-		    return true;
+		if (COUNT_STACKS) {
+			stackWalks.inc();
 		}
-		if (writer == root && reader != root || writer != root && reader == root) {
-			// Layer mismatch at root of stacks.
-			// TODO pop/throw to find a compositional module...
-			return false;
+		final boolean allowed = walkStacks(writer, this);
+		if (cacheable) {
+			verdictCache.put(writer.serial, serial, allowed);
 		}
-		
-		final int writerMod = Spec.getModuleID(writer.methodUID);
-		if (writerMod == Spec.getModuleID(reader.methodUID)) {
+		return allowed;
+	}
+	
+	/**
+	 * Walk the writer and reader stacks one module segment at a time, using
+	 * the segment summaries built at push time. Allocation-free.
+	 */
+	private static boolean walkStacks(Stack writer, Stack reader) {
+		for (int segDepth = 1; ; segDepth++) {
+			if (writer == root && reader == root) {
+				// Successfully walked to the roots of each stack.
+				return true;
+			}
+			if (writer == classInitializer || reader == classInitializer) {
+			    // Allow communication with class initializers.
+			    return true;
+			}
+			if (writer == root || reader == root) {
+				// Layer mismatch at root of stacks.
+				// TODO pop/throw to find a compositional module...
+				return false;
+			}
+			
+			if (Spec.getModuleID(writer.methodUID) != Spec.getModuleID(reader.methodUID)) {
+				// Immediate pair not in same module: do compositional module check.
+				// First, see if there's a layer on both stacks that doesn't match up with any caller or callee
+				// layer on the other side.
+				// Then, try merging with callers.
+				// THen try coming back down to merge with callees if needed.
+				// The general case is going to have pretty high worst-case theoretical
+				// time
+				// TODO Implement compositional modules
+				return false;
+			}
+			
 			// Immediate pair are in same module: no compositional module check needed here.
-			// Find the reader layer.
-			final BitVectorIntSet layer = new BitVectorIntSet();
-			final Stack readerLayerTop = reader.expandLayer(layer, writerMod, 0);
-			Assert.assertTrue(!layer.isEmpty());
-			// Find the writer layer and check the layer mapping.
+			final BitVectorIntSet layer = reader.segmentMethods;
+			final Stack readerLayerTop = reader.segmentEnd;
+			final Stack writerLayerTop = writer.segmentEnd;
 			final ModuleSpec layerModule = Spec.getModule(writer.methodUID);
 			if (COUNT_STACKS) {
 				modulesUsed.add(layerModule);
+				segSizeDist.add(layer.size());
+				setLengthDist.add(reader.depth - readerLayerTop.depth + 1);
+				setLengthDist.add(writer.depth - writerLayerTop.depth + 1);
 			}
-			final Stack writerLayerTop;
-			try {
-				writerLayerTop = writer.checkLayer(layer, layerModule, 0);
-			} catch (IllegalInternalEdgeException e) {
+			// Check the writer layer against the reader layer.
+			if (!checkLayer(writer.segmentMethods, layer, layerModule)) {
 				return false;
 			}
 			// The communication in this layer is allowed.
 			// Is the communication exposed?
-			if (layerModule.isPublic(writerLayerTop.methodUID, readerLayerTop.methodUID)) {
-				if (RECORD) {
-					recordInterface(writerLayerTop, readerLayerTop, layerModule);
+			if (!layerModule.isPublic(writerLayerTop.methodUID, readerLayerTop.methodUID)) {
+				if (COUNT_STACKS) {
+					segCountDist.add(segDepth);
 				}
-				// communication is exposed here. Must check rest of stacks.
-				return walkStacks(writerLayerTop.parent, readerLayerTop.parent, segDepth + 1);
-			} else if (COUNT_STACKS) {
-				segCountDist.add(segDepth + 1);
+				// communication is hidden here. All checks so far succeeded so the
+				//communication is valid.
+				return true;
 			}
-			// communication is hidden here. All checks so far succeeded so the
-			//communication is valid.
-			return true;
-		} else {
-			// Immediate pair not in same module: do compositional module check.
-			// First, see if there's a layer on both stacks that doesn't match up with any caller or callee
-			// layer on the other side.
-			// Then, try merging with callers.
-			// THen try coming back down to merge with callees if needed.
-			// The general case is going to have pretty high worst-case theoretical
-			// time
-			// TODO Implement compositional modules
-			return false;
+			if (RECORD) {
+				recordInterface(writerLayerTop, readerLayerTop, layerModule);
+			}
+			// communication is exposed here. Must check rest of stacks.
+			writer = writerLayerTop.parent;
+			reader = readerLayerTop.parent;
 		}
 	}
 	
 	/**
-	 * Expands the set layer until it includes all methods from the same module
-	 * appearing consecutively on the stack.
-	 * 
-	 * @param layer
-	 * @param moduleID
-	 * @return the last stack frame that contributed to the set.
-	 */
-	private Stack expandLayer(final BitVectorIntSet layer, final int moduleID, final int depth) {
-	    // Should only be called on a stack with at least one method from
-	    // the module.
-	    Assert.assertTrue(moduleID == Spec.getModuleID(methodUID));
-	        
-        layer.add(Spec.getMethodID(methodUID));
-        if (moduleID != Spec.getModuleID(parent.methodUID)) {
-        	if (COUNT_STACKS) {
-        		setLengthDist.add(depth + 1);
-        	}
-            // Module boundary.
-            return this;
-        } else {
-            // Continue expanding.
-            return parent.expandLayer(layer, moduleID, depth + 1);
-        }
-	}
-	
-	/**
-	 * Checks that each method in the chunk of consecutive methods from the same module
-	 * is allowed to communicate to all of the methods in the opposing chunk.
+	 * Checks that each method in a writer layer is allowed to communicate to
+	 * all of the methods in the opposing reader layer. Each distinct method
+	 * is checked once, however many frames it has in the layer.
 	 * 
-	 * @param layer
+	 * @param writers method ids of the writer layer
+	 * @param readers method ids of the reader layer
 	 * @param module
-	 * @return the last stack frame on this stack that was in the consecutive chunk
-	 * belonging to this module.
-	 * @throws IllegalInternalEdgeException if there was an illegal internal edge
+	 * @return true if all the communication is allowed
 	 */
-	private Stack checkLayer(final BitVectorIntSet layer, final ModuleSpec module, int depth) throws IllegalInternalEdgeException {
-	    Assert.assertTrue(module.getId() == Spec.getModuleID(methodUID));
-	    
-	    if (COUNT_STACKS) {
-	    	segSizeDist.add(layer.size());
-	    }
-		if (RECORD) {
-			recordLayer(layer, module);
-		}
-		if (module.allAllowed(methodUID, layer)) {
-			if (module.getId() != Spec.getModuleID(parent.methodUID)) {
-				if (COUNT_STACKS) {
-					setLengthDist.add(depth + 1);
-				}
-			    // Module boundary.
-				return this;
-			} else {
-			    // Continue checking.
-				return parent.checkLayer(layer, module, depth + 1);
+	private static boolean checkLayer(final BitVectorIntSet writers, final BitVectorIntSet readers, final ModuleSpec module) {
+		final int moduleID = module.getId();
+		for (int m = writers.nextMember(0); m >= 0; m = writers.nextMember(m + 1)) {
+			final int uid = Spec.makeUID(moduleID, m);
+			if (RECORD) {
+				recordLayer(uid, readers, module);
+			}
+			if (!module.allAllowed(uid, readers)) {
+				return false;
 			}
-		} else {
-			throw new IllegalInternalEdgeException();
 		}
+		return true;
 	}
 	
-	protected void recordLayer(final BitVectorIntSet layer, final ModuleSpec module) {
+	protected static void recordLayer(final int methodUID, final BitVectorIntSet layer, final ModuleSpec module) {
 		synchronized (commGraphs) {
 			if (!commGraphs.containsKey(module)) {
 				commGraphs.put(module, new ExpandableGraph(module.getMethods().length));
@@ -398,9 +580,6 @@ public class Stack {
 		}
 	}
 	
-	@SuppressWarnings("serial")
-	private static class IllegalInternalEdgeException extends Exception { }
-	
 	/**
 	 * Check if two stacks are equal. pointer equality.
 	 */
@@ -425,21 +604,26 @@ public class Stack {
 	/**
 	 * Counter for stack IDs.
 	 */
-	private static int idCounter = -1;
+	private static final AtomicInteger idCounter = new AtomicInteger(-1);
+	
+	/**
+	 * Verdicts of stack walks, shared by all reader stacks.
+	 */
+	private static final boolean USE_VERDICT_CACHE = Config.verdictCacheSizeOption.get() > 0;
+	private static final VerdictCache verdictCache = USE_VERDICT_CACHE ? new VerdictCache(Config.verdictCacheSizeOption.get()) : null;
 	
 	/**
-	 * Hash cons table of all stacks to save memory.
+	 * Hash cons table of all stacks to save memory and make stacks canonical
+	 * across threads.
 	 */
-	// TODO make the whole thing thread-local to avoid synchronization?
-	private static final ConcurrentIdentityHashMap<Integer,ConcurrentIdentityHashMap<Stack,Stack>> hashConsTable = 
-		new ConcurrentIdentityHashMap<Integer,ConcurrentIdentityHashMap<Stack,Stack>>();
+	private static final StackTable hashConsTable = new StackTable();
 
 	/**
 	 * Get the last id issued for a stack.
 	 * @return
 	 */
-	public static synchronized int lastID() {
-		return idCounter;
+	public static int lastID() {
+		return idCounter.get();
 	}
 
 	public static void dumpRecordedGraphs(String mainClass) {
@@ -519,7 +703,7 @@ public class Stack {
 //				specXml.close();
 
 				execXml.start("stacks");
-				int patchedID = idCounter;
+				int patchedID = idCounter.get();
 				IdentityHashMap<Stack,Integer> patchedStackIDs = new IdentityHashMap<Stack,Integer>();
 				int stacksRecorded = 0;
 				for (Stack s : allStacks) {
@@ -0,0 +1,227 @@
+/*
+
+Copyright (c) 2010, Benjamin P. Wood and Adrian Sampson, University of Washington
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the University of Washington nor the names of its
+   contributors may be used to endorse or promote products derived from this
+   software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+*/
+
+
+package oshajava.runtime;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hash cons table for Stacks, keyed on the primitive pair (methodUID, parent).
+ * 
+ * Open addressing with linear probing. Lookups take no locks. Inserts claim
+ * an empty slot with a CAS. Entries are never removed, so a probe that hits
+ * an empty slot can stop: the key is not in the table.
+ * 
+ * Resizing is serialized by the table's monitor. The resizer first points
+ * the old table at its successor and then freezes each empty slot of the old
+ * table with the MOVED sentinel before copying the live entries over. Any
+ * probe (lookup or insert) that hits MOVED follows the old table's successor.
+ * Since no insert can land in the old table after its slot was frozen, no
+ * entry is lost.
+ * 
+ * Because stacks are canonical, a StackTable also serves as a lock-free
+ * identity set of stacks (see contains and add).
+ * 
+ * @author bpw
+ *
+ */
+final class StackTable {
+	
+	private static final int INITIAL_CAPACITY = 1 << 10;
+	
+	/**
+	 * Sentinel filling empty slots of a table that has been replaced.
+	 */
+	private static final Stack MOVED = Stack.sentinel();
+	
+	private static final class Table {
+		final AtomicReferenceArray<Stack> slots;
+		final int mask;
+		final int threshold;
+		/**
+		 * Successor table. Set (once) before any slot is frozen.
+		 */
+		volatile Table next;
+		
+		Table(final int capacity) {
+			if ((capacity & (capacity - 1)) != 0) throw new IllegalArgumentException("The capacity must be a power of 2. (" + capacity + " is not.)");
+			slots = new AtomicReferenceArray<Stack>(capacity);
+			mask = capacity - 1;
+			// Keep linear probe sequences short.
+			threshold = capacity >> 1;
+		}
+	}
+	
+	private volatile Table table;
+	
+	private final AtomicInteger size = new AtomicInteger();
+	
+	/**
+	 * @param initialCapacity must be a power of 2.
+	 */
+	StackTable(final int initialCapacity) {
+		table = new Table(initialCapacity);
+	}
+	
+	StackTable() {
+		this(INITIAL_CAPACITY);
+	}
+	
+	/**
+	 * Hash for the key (methodUID, parent).
+	 */
+	static int hash(final int methodUID, final Stack parent) {
+		int h = methodUID * 0x9E3779B9 + parent.hash;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		return h;
+	}
+	
+	/**
+	 * Get the canonical stack for (methodUID, parent) or null if there is none yet.
+	 */
+	Stack get(final int methodUID, final Stack parent) {
+		final int h = hash(methodUID, parent);
+		Table t = table;
+		int i = h & t.mask;
+		while (true) {
+			final Stack s = t.slots.get(i);
+			if (s == null) {
+				return null;
+			} else if (s == MOVED) {
+				t = t.next;
+				i = h & t.mask;
+			} else if (s.methodUID == methodUID && s.parent == parent) {
+				return s;
+			} else {
+				i = (i + 1) & t.mask;
+			}
+		}
+	}
+	
+	/**
+	 * Insert stack if no stack with the same key is present.
+	 * @return the stack already present, or null if stack was inserted.
+	 */
+	Stack putIfAbsent(final Stack stack) {
+		final Stack s = insert(table, stack);
+		if (s == null && size.incrementAndGet() > table.threshold) {
+			resize();
+		}
+		return s;
+	}
+	
+	private static Stack insert(Table t, final Stack stack) {
+		final int h = stack.hash;
+		int i = h & t.mask;
+		while (true) {
+			final Stack s = t.slots.get(i);
+			if (s == null) {
+				if (t.slots.compareAndSet(i, null, stack)) {
+					return null;
+				}
+				// Lost the race for this slot. Look at what won.
+			} else if (s == MOVED) {
+				t = t.next;
+				i = h & t.mask;
+			} else if (s == stack || (stack.parent != null && s.methodUID == stack.methodUID && s.parent == stack.parent)) {
+				// (The root stacks have no parent and are only equal to themselves.)
+				return s;
+			} else {
+				i = (i + 1) & t.mask;
+			}
+		}
+	}
+	
+	private synchronized void resize() {
+		final Table old = table;
+		if (size.get() <= old.threshold) {
+			// Someone else already resized.
+			return;
+		}
+		final Table bigger = new Table(old.slots.length() << 1);
+		old.next = bigger;
+		for (int i = 0; i < old.slots.length(); i++) {
+			Stack s = old.slots.get(i);
+			while (s == null) {
+				if (old.slots.compareAndSet(i, null, MOVED)) {
+					break;
+				}
+				s = old.slots.get(i);
+			}
+			if (s != null) {
+				insert(bigger, s);
+			}
+		}
+		table = bigger;
+	}
+	
+	/**
+	 * Check if this exact (canonical) stack is in the table.
+	 */
+	boolean contains(final Stack stack) {
+		final int h = stack.hash;
+		Table t = table;
+		int i = h & t.mask;
+		while (true) {
+			final Stack s = t.slots.get(i);
+			if (s == stack) {
+				return true;
+			} else if (s == null) {
+				return false;
+			} else if (s == MOVED) {
+				t = t.next;
+				i = h & t.mask;
+			} else {
+				i = (i + 1) & t.mask;
+			}
+		}
+	}
+	
+	/**
+	 * Add this (canonical) stack to the table if it is not there already.
+	 */
+	void add(final Stack stack) {
+		putIfAbsent(stack);
+	}
+	
+	/**
+	 * Number of stacks in the table.
+	 */
+	int size() {
+		return size.get();
+	}
+
+}
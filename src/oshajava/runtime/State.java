@@ -32,8 +32,6 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package oshajava.runtime;
 
-import java.util.HashMap;
-
 import oshajava.util.count.Counter;
 
 
@@ -60,21 +58,54 @@ public final class State {
 	
 	private int stackID = -1;
 	
+	/**
+	 * Packed shadow word for this state: thread id in the high 32 bits,
+	 * stack serial in the low 32 bits. See -packedShadows.
+	 */
+	public final long word;
+	
 	/**
 	 * State of caller.
 	 */
 	private final State caller;
 	
 	/**
-	 * States for callees by method. Populated lazily.
+	 * Most recently called callee and its method.
+	 */
+	private int lastCalleeUID = Integer.MIN_VALUE;
+	private State lastCallee;
+	
+	/**
+	 * States for callees by method. Populated lazily. Open addressing,
+	 * linear probing. A slot is empty iff its callee is null.
+	 */
+	private int[] calleeUIDs;
+	private State[] callees;
+	private int calleeCount = 0;
+	
+	private static final int INITIAL_CALLEES = 4;
+	
+	/**
+	 * Marks a coarse group shadow whose per-field states have been split
+	 * out into the runtime. See -objectGrouping=AUTO.
 	 */
-	protected final HashMap<Integer,State> calleeToState = new HashMap<Integer,State>();
+	public static final State SPLIT = new State(null, null, null);
+	
+	/**
+	 * State of a class initializer called from here. Populated lazily.
+	 */
+	private State clinitCallee;
 	
 	private State(final ThreadState thread, final State caller, final Stack stack) {
+		this(thread, caller, stack, thread == null || stack == null ? 0L : pack(thread.id, stack.serial));
+	}
+	
+	private State(final ThreadState thread, final State caller, final Stack stack, final long word) {
 		this.caller = caller;
 		this.stack = stack;
 		this.thread = thread;
-		if (stack != null) this.stackID = stack.id;
+		if (stack != null) this.stackID = stack.cacheKey();
+		this.word = word;
 		
 		if (COUNT_STATES) statesCreated.inc();
 	}
@@ -85,21 +116,71 @@ public final class State {
 	 * @return
 	 */
 	public State call(final int methodUID) {
-		State cs = calleeToState.get(methodUID);
+		if (methodUID == lastCalleeUID) {
+			return lastCallee;
+		}
+		State cs = lookupCallee(methodUID);
 		if (cs == null) {
-			cs = new State(thread, this, Stack.push(methodUID, stack));
-			calleeToState.put(methodUID, cs);
+			cs = new State(thread, this, thread.push(methodUID, stack));
+			insertCallee(methodUID, cs);
 		}
+		lastCalleeUID = methodUID;
+		lastCallee = cs;
 		return cs;
 	}
 	
+	private State lookupCallee(final int methodUID) {
+		if (callees == null) {
+			return null;
+		}
+		final int mask = callees.length - 1;
+		for (int i = methodUID & mask; callees[i] != null; i = (i + 1) & mask) {
+			if (calleeUIDs[i] == methodUID) {
+				return callees[i];
+			}
+		}
+		return null;
+	}
+	
+	private void insertCallee(final int methodUID, final State callee) {
+		if (callees == null) {
+			calleeUIDs = new int[INITIAL_CALLEES];
+			callees = new State[INITIAL_CALLEES];
+		} else if ((calleeCount + 1) * 4 > callees.length * 3) {
+			final int[] oldUIDs = calleeUIDs;
+			final State[] oldCallees = callees;
+			calleeUIDs = new int[oldCallees.length << 1];
+			callees = new State[oldCallees.length << 1];
+			for (int i = 0; i < oldCallees.length; i++) {
+				if (oldCallees[i] != null) {
+					putCallee(oldUIDs[i], oldCallees[i]);
+				}
+			}
+		}
+		putCallee(methodUID, callee);
+		calleeCount++;
+	}
+	
+	private void putCallee(final int methodUID, final State callee) {
+		final int mask = callees.length - 1;
+		int i = methodUID & mask;
+		while (callees[i] != null) {
+			i = (i + 1) & mask;
+		}
+		calleeUIDs[i] = methodUID;
+		callees[i] = callee;
+	}
+	
 	/**
 	 * Get the state resulting from invoking a class initializer.
 	 * @param methodUID
 	 * @return
 	 */
 	public State callClinit() {
-		return new State(thread, this, Stack.classInitializer);
+		if (clinitCallee == null) {
+			clinitCallee = new State(thread, this, Stack.classInitializer);
+		}
+		return clinitCallee;
 	}
 	
 	/**
@@ -112,13 +193,40 @@ public final class State {
 	
 	public int getStackID() {
 		if (stackID == Integer.MAX_VALUE) {
-			stackID = stack.id;
+			stackID = stack.cacheKey();
 		}
 		return stackID;
 	}
 	
+	// -- Packed shadow words ----------------------------------------------------
+	
+	static long pack(final int threadID, final int serial) {
+		return ((long)threadID << 32) | (serial & 0xFFFFFFFFL);
+	}
+	
+	static int wordThreadID(final long word) {
+		return (int)(word >>> 32);
+	}
+	
+	static int wordSerial(final long word) {
+		return (int)word;
+	}
+	
+	/**
+	 * Make a State for reporting the write recorded in a packed shadow word.
+	 * It has no caller, so it is only good for its thread and stack. Its
+	 * thread is null if the writer's ThreadState has been collected.
+	 * @param word
+	 * @param stack the stack named by word
+	 * @return
+	 */
+	static State unpack(final long word, final Stack stack) {
+		return new State(ThreadState.byID(wordThreadID(word)), null, stack, word);
+	}
+	
 	public String toString() {
-		return thread.toString() + ":\n" + stack.toString();
+		final String t = thread == null ? "Thread " + wordThreadID(word) + " (no longer live)" : thread.toString();
+		return t + ":\n" + stack.toString();
 	}
 	
 	/**
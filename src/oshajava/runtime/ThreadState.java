@@ -32,11 +32,16 @@ SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package oshajava.runtime;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentMap;
 
 import oshajava.runtime.RuntimeMonitor.Ref;
 import oshajava.support.acme.util.Assert;
+import oshajava.util.ArrayUtil;
+import oshajava.util.IdRegistry;
 import oshajava.util.cache.DirectMappedShadowCache;
+import oshajava.util.cache.SetAssociativeShadowCache;
 import oshajava.util.cache.ShadowCache;
 import oshajava.util.count.Counter;
 
@@ -63,7 +68,7 @@ public final class ThreadState {
 	public ThreadState(final Thread thread) {
 		threadRef = new WeakReference<Thread>(thread);
 		name = thread.getName();
-		id = newID();
+		if (Stack.PACKED_SHADOWS) register(this);
 	}
 
 	// -- Thread IDs -------------------------------------------------
@@ -82,6 +87,51 @@ public final class ThreadState {
 		return ++idCounter;
 	}
 	
+	/**
+	 * ThreadStates by id, for resolving packed shadow words. Held weakly:
+	 * a ThreadState outlives its thread only while States still refer to
+	 * it, and words naming a collected one are reported by id alone. (See
+	 * State.unpack.)
+	 */
+	private static final IdRegistry<Registration> threadStatesByID = Stack.PACKED_SHADOWS ? new IdRegistry<Registration>(64) : null;
+	
+	/**
+	 * Registrations whose ThreadStates have been collected.
+	 */
+	private static final ReferenceQueue<ThreadState> retired = Stack.PACKED_SHADOWS ? new ReferenceQueue<ThreadState>() : null;
+	
+	private static final class Registration extends WeakReference<ThreadState> {
+		private final int id;
+		Registration(final ThreadState ts) {
+			super(ts, retired);
+			this.id = ts.id;
+		}
+	}
+	
+	/**
+	 * Register ts by id, first dropping registrations of collected
+	 * ThreadStates, so the registry holds at most one slot per id.
+	 * @param ts
+	 */
+	private static void register(final ThreadState ts) {
+		Registration r;
+		while ((r = (Registration)retired.poll()) != null) {
+			threadStatesByID.remove(r.id);
+		}
+		threadStatesByID.put(ts.id, new Registration(ts));
+	}
+	
+	/**
+	 * Get the ThreadState with the given id (-packedShadows only), or null
+	 * if it has been collected.
+	 * @param id
+	 * @return
+	 */
+	static ThreadState byID(final int id) {
+		final Registration r = threadStatesByID.get(id);
+		return r == null ? null : r.get();
+	}
+	
 	/**
 	 * Get the last thread id allocated.
 	 * @return
@@ -91,9 +141,9 @@ public final class ThreadState {
 	}
 	
 	/**
-	 * Thread id.
+	 * Thread id. (Assigned before state below, which packs it.)
 	 */
-	public final int id;
+	public final int id = newID();
 	
 	// -- Thread metadata --------------------------------------------------------
 	
@@ -126,44 +176,184 @@ public final class ThreadState {
 	// -- Thread call stack/state -----------------------------------------------------
 	
 	/**
-	 * Cached copy of this thread's current State.
+	 * Cached copy of this thread's current State. Not maintained with
+	 * -lazyStacks. Use currentState() unless you know which mode you are in.
 	 */
 	public State state = State.root(this);
 	
+	public static final Counter FRAMES_ENTERED = new Counter("Lazy frames entered"), FRAMES_MATERIALIZED = new Counter("Lazy frames materialized");
+	public static final boolean LAZY_STACKS = Config.lazyStacksOption.get();
+	public static final boolean COUNT_FRAMES = LAZY_STACKS && RuntimeMonitor.PROFILE && true;
+	
+	private static final int INITIAL_FRAMES = 64;
+	
+	/**
+	 * Stand-in method UID for class initializer frames on the shadow call stack.
+	 */
+	private static final int CLINIT_UID = -2;
+	
+	/**
+	 * Shadow call stack for -lazyStacks. enter and exit only push and pop
+	 * method UIDs here. The State of a frame is made (and kept in
+	 * frameStates) the first time the frame needs it. Frame 0 is the root.
+	 * Frames up to materializedTop have States, so exit need not clear
+	 * any reference.
+	 */
+	private int[] frameUIDs = LAZY_STACKS ? new int[INITIAL_FRAMES] : null;
+	private State[] frameStates = LAZY_STACKS ? new State[INITIAL_FRAMES] : null;
+	private int top = 0, materializedTop = 0;
+	{
+		if (LAZY_STACKS) frameStates[0] = state;
+	}
+	
 	/**
 	 * Update call stack/state to reflect entering the method with id mid.
 	 * @param methodUID
 	 */
 	protected void enter(final int methodUID) {
-		state = state.call(methodUID);
+		if (LAZY_STACKS) {
+			pushFrame(methodUID);
+		} else {
+			state = state.call(methodUID);
+		}
 	}
 	
 	/**
 	 * Update call stack/state to reflect entering a class initializer.
 	 */
 	protected void enterClinit() {
-		state = state.callClinit();
+		if (LAZY_STACKS) {
+			pushFrame(CLINIT_UID);
+		} else {
+			state = state.callClinit();
+		}
 	}
 	
 	/**
 	 * Update call stack/state to reflect exiting the method with id mid.
 	 */
 	protected void exit() {
-		state = state.ret();
+		if (LAZY_STACKS) {
+			if (materializedTop == top) {
+				materializedTop--;
+			}
+			top--;
+		} else {
+			state = state.ret();
+		}
+	}
+	
+	private void pushFrame(final int methodUID) {
+		if (COUNT_FRAMES) FRAMES_ENTERED.inc();
+		if (++top == frameUIDs.length) {
+			frameUIDs = ArrayUtil.copy(frameUIDs, top * 2);
+			final State[] states = new State[top * 2];
+			System.arraycopy(frameStates, 0, states, 0, top);
+			frameStates = states;
+		}
+		frameUIDs[top] = methodUID;
+	}
+	
+	/**
+	 * Get the State of the current frame, making it (and the States of any
+	 * frames below it that do not have one yet) if needed.
+	 * @return
+	 */
+	protected State materialize() {
+		int i = materializedTop;
+		State s = frameStates[i];
+		while (i < top) {
+			i++;
+			s = frameUIDs[i] == CLINIT_UID ? s.callClinit() : s.call(frameUIDs[i]);
+			frameStates[i] = s;
+			if (COUNT_FRAMES) FRAMES_MATERIALIZED.inc();
+		}
+		materializedTop = top;
+		return s;
+	}
+	
+	/**
+	 * Get this thread's current State.
+	 * @return
+	 */
+	public State currentState() {
+		return LAZY_STACKS ? materialize() : state;
+	}
+	
+	// -- Stack interning --------------------------------------------------------
+	
+	public static final Counter STACK_HITS = new Counter("Stack intern hits"), STACK_MISSES = new Counter("Stack intern misses");
+	public static final boolean COUNT_STACK_CACHE = RuntimeMonitor.PROFILE && true;
+	
+	/**
+	 * Direct-mapped cache of canonical stacks this thread has pushed, indexed
+	 * by the stack's hash. Only misses go to the shared hash cons table.
+	 */
+	private final Stack[] stackCache = new Stack[Config.stackCacheSizeOption.get()];
+	private final int stackCacheMask = stackCache.length - 1;
+	{
+		if ((stackCacheMask & stackCache.length) != 0) throw new IllegalArgumentException("The stack cache size must be a power of 2. (" + stackCache.length + " is not.)");
+	}
+	
+	/**
+	 * Get the canonical stack formed by pushing methodUID on parent.
+	 * @param methodUID
+	 * @param parent
+	 * @return
+	 */
+	protected Stack push(final int methodUID, final Stack parent) {
+		final int slot = StackTable.hash(methodUID, parent) & stackCacheMask;
+		Stack stack = stackCache[slot];
+		if (stack != null && stack.methodUID == methodUID && stack.parent == parent) {
+			if (COUNT_STACK_CACHE) STACK_HITS.inc();
+			return stack;
+		}
+		if (COUNT_STACK_CACHE) STACK_MISSES.inc();
+		stack = Stack.push(methodUID, parent);
+		if (stack.parent == parent) {
+			// Collapsed recursive pushes are not keyed by (methodUID, parent).
+			stackCache[slot] = stack;
+		}
+		return stack;
 	}
 	
 	// -- Array state caching --------------------------------------------------------
 	
+	/**
+	 * Make a thread-local cache in front of store: direct-mapped, or
+	 * set-associative with a victim buffer if -shadowCacheWays > 1.
+	 */
+	private static <V> ShadowCache<Object,V> shadowCache(final ConcurrentMap<Object,V> store, final int size, 
+			final Counter hits, final Counter misses) {
+		if (Config.shadowCacheWaysOption.get() > 1) {
+			return new SetAssociativeShadowCache<Object,V>(store, size, Config.shadowCacheWaysOption.get(), 
+					Config.shadowCacheVictimsOption.get(), hits, misses);
+		}
+		return new DirectMappedShadowCache<Object,V>(store, size, hits, misses);
+	}
+	
 	public static final Counter ARRAY_HITS = new Counter("Array hits"), ARRAY_MISSES = new Counter("Array misses");
 	
 	protected final ShadowCache<Object,Ref<State>> arrayStateCache = 
-		Config.arrayTrackingOption.get() == Config.Granularity.FINE ? null :
-			new DirectMappedShadowCache<Object,Ref<State>>(RuntimeMonitor.coarseArrayStates, 
+		Config.arrayTrackingOption.get() != Config.Granularity.COARSE ? null :
+			shadowCache(RuntimeMonitor.coarseArrayStates, 
 					Config.arrayCacheSizeOption.get(),	ARRAY_HITS, ARRAY_MISSES);
 	
-	protected final ShadowCache<Object,State[]> arrayIndexStateCache = 
-		Config.arrayTrackingOption.get() == Config.Granularity.FINE ?
-				new DirectMappedShadowCache<Object,State[]>(RuntimeMonitor.arrayStates, 
+	protected final ShadowCache<Object,State[][]> arrayIndexStateCache = 
+		Config.arrayTrackingOption.get() == Config.Granularity.FINE && !RuntimeMonitor.ARRAY_SHADOW_OBJECTS && !RuntimeMonitor.OFF_HEAP_ARRAYS ?
+				shadowCache(RuntimeMonitor.arrayStates, 
+						Config.arrayCacheSizeOption.get(), ARRAY_HITS, ARRAY_MISSES)
+				: null;
+	
+	protected final ShadowCache<Object,OffHeapArrayShadows.Shadow> offHeapArrayStateCache = 
+		RuntimeMonitor.OFF_HEAP_ARRAYS ?
+				shadowCache(RuntimeMonitor.offHeapArrayStates, 
+						Config.arrayCacheSizeOption.get(), ARRAY_HITS, ARRAY_MISSES)
+				: null;
+	
+	protected final ShadowCache<Object,AdaptiveArrayShadow> adaptiveArrayStateCache = 
+		RuntimeMonitor.ARRAY_SHADOW_OBJECTS ?
+				shadowCache(RuntimeMonitor.adaptiveArrayStates, 
 						Config.arrayCacheSizeOption.get(), ARRAY_HITS, ARRAY_MISSES)
 				: null;
 	
@@ -201,13 +391,12 @@ public final class ThreadState {
 //	 *     ((1 - HitRate(N)) * (N + 10)) + (HitRate(N) * AvgHitTime(N)) 
 //	 */
 //	// TODO Do some GC of the cache or use array of WeakRefs to the actual array objects.
-//	// TODO victim buffer or 2-way associative?
 
 	// -- Lock state caching ---------------------------------------------------------
 	
 	public static final Counter LOCK_HITS = new Counter("Lock hits"), LOCK_MISSES = new Counter("Lock misses");
 
 	protected final ShadowCache<Object,LockState> lockStateCache = 
-		new DirectMappedShadowCache<Object,LockState>(RuntimeMonitor.lockStates, 
+		shadowCache(RuntimeMonitor.lockStates, 
 				Config.lockCacheSizeOption.get(), LOCK_HITS, LOCK_MISSES);	
 }
@@ -0,0 +1,144 @@
+/*
+
+Copyright (c) 2010, Benjamin P. Wood and Adrian Sampson, University of Washington
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the University of Washington nor the names of its
+   contributors may be used to endorse or promote products derived from this
+   software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+*/
+
+
+package oshajava.runtime;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide cache of stack walk verdicts, keyed on the pair of writer and
+ * reader stack serials.  Unlike the per-stack writer memo, it also remembers
+ * denied pairs.
+ * 
+ * The table is a fixed number of buckets of WAYS slots each. A slot is one
+ * long holding the packed key, the verdict, and a reference bit, so lookups
+ * and inserts are single reads and CASes, with no locks. When a bucket is
+ * full, an insert evicts with the clock (second chance) rule: a slot whose
+ * reference bit is set has it cleared and is passed over once.
+ * 
+ * Losing a race only loses a cache entry, never a verdict: the caller walks
+ * the stacks again.
+ * 
+ * @author bpw
+ *
+ */
+final class VerdictCache {
+	
+	private static final int WAYS = 8;
+	
+	private static final long REFERENCED = 1L;
+	private static final long ALLOWED_BIT = 2L;
+	private static final long FLAGS = REFERENCED | ALLOWED_BIT;
+	
+	/**
+	 * Results of lookup.
+	 */
+	static final int UNKNOWN = -1, DENIED = 0, ALLOWED = 1;
+	
+	private final AtomicLongArray slots;
+	private final int bucketMask;
+	
+	VerdictCache(final int capacity) {
+		if ((capacity & (capacity - 1)) != 0 || capacity < WAYS) {
+			throw new IllegalArgumentException("The capacity must be a power of 2 no less than " + WAYS + ". (" + capacity + " is not.)");
+		}
+		slots = new AtomicLongArray(capacity);
+		bucketMask = capacity / WAYS - 1;
+	}
+	
+	/**
+	 * Packs a pair of serials (both positive) into a key with the flag bits clear.
+	 */
+	private static long key(final int writerSerial, final int readerSerial) {
+		return ((long)writerSerial << 33) | ((long)readerSerial << 2);
+	}
+	
+	private int bucket(final int writerSerial, final int readerSerial) {
+		int h = writerSerial * 0x9E3779B9 + readerSerial;
+		h ^= h >>> 16;
+		h *= 0x85EBCA6B;
+		h ^= h >>> 13;
+		return (h & bucketMask) * WAYS;
+	}
+	
+	/**
+	 * @return ALLOWED, DENIED, or UNKNOWN if the pair is not cached.
+	 */
+	int lookup(final int writerSerial, final int readerSerial) {
+		final long key = key(writerSerial, readerSerial);
+		final int base = bucket(writerSerial, readerSerial);
+		for (int i = base; i < base + WAYS; i++) {
+			final long v = slots.get(i);
+			if ((v & ~FLAGS) == key) {
+				if ((v & REFERENCED) == 0) {
+					slots.compareAndSet(i, v, v | REFERENCED);
+				}
+				return (v & ALLOWED_BIT) != 0 ? ALLOWED : DENIED;
+			}
+		}
+		return UNKNOWN;
+	}
+	
+	/**
+	 * Cache a verdict, evicting a slot in the pair's bucket if needed.
+	 */
+	void put(final int writerSerial, final int readerSerial, final boolean allowed) {
+		final long key = key(writerSerial, readerSerial);
+		final long entry = key | (allowed ? ALLOWED_BIT : 0L);
+		final int base = bucket(writerSerial, readerSerial);
+		for (int i = base; i < base + WAYS; i++) {
+			final long v = slots.get(i);
+			if ((v & ~FLAGS) == key) {
+				// Someone beat us to it. Verdicts never change.
+				return;
+			}
+			if (v == 0 && slots.compareAndSet(i, 0, entry)) {
+				return;
+			}
+		}
+		// Bucket full: clock. Start the hand at a different way for each key
+		// so one slot is not a hot spot. The first round may only clear
+		// reference bits.
+		final int start = (int)(key >>> 2) & (WAYS - 1);
+		for (int n = 0; n < 2 * WAYS; n++) {
+			final int i = base + ((start + n) & (WAYS - 1));
+			final long v = slots.get(i);
+			if ((v & REFERENCED) != 0) {
+				slots.compareAndSet(i, v, v & ~REFERENCED);
+			} else if (slots.compareAndSet(i, v, entry)) {
+				return;
+			}
+		}
+	}
+	
+}
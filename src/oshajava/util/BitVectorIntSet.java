@@ -143,6 +143,25 @@ public class BitVectorIntSet implements Serializable, Iterable<Integer> {
 		return (bits[slot] & (1 << (member % SLOT_SIZE))) != 0;
 	}
 	
+	/**
+	 * Get the least member no less than from, or -1 if there is none.
+	 * Allocation-free alternative to iterator().
+	 */
+	public int nextMember(final int from) {
+		int slot = from / SLOT_SIZE;
+		if (slot >= bits.length) {
+			return -1;
+		}
+		int word = bits[slot] & (-1 << (from % SLOT_SIZE));
+		while (word == 0) {
+			if (++slot >= bits.length) {
+				return -1;
+			}
+			word = bits[slot];
+		}
+		return slot * SLOT_SIZE + Integer.numberOfTrailingZeros(word);
+	}
+	
 	/**
 	 * Check if the set contains all members of other.
 	 * @param other
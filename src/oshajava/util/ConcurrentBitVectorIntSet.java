@@ -0,0 +1,185 @@
+/*
+
+Copyright (c) 2010, Benjamin P. Wood and Adrian Sampson, University of Washington
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the University of Washington nor the names of its
+   contributors may be used to endorse or promote products derived from this
+   software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+*/
+
+
+package oshajava.util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+import oshajava.support.acme.util.Assert;
+
+/**
+ * A set of ints represented by a bit vector, safe for concurrent use
+ * without locks. contains is wait-free and always reads a consistent
+ * snapshot of the bit vector. Members are never removed.
+ * 
+ * Growth publishes a bigger copy of the bit vector with a CAS. The grower
+ * ORs the old vector into the new one again after publishing, and add
+ * re-sets its bit if the vector it wrote to was replaced meanwhile, so no
+ * add is lost. A contains racing with growth may miss a member that is
+ * being added, which is fine for a cache.
+ * 
+ * @author bpw
+ *
+ */
+public class ConcurrentBitVectorIntSet {
+	
+	/**
+	 * Number of bits per slot (width of primitive type).
+	 */
+	protected static final int SLOT_SIZE = BitVectorIntSet.SLOT_SIZE;
+	
+	private static final int MAX_SLOTS = Integer.MAX_VALUE / SLOT_SIZE - 1;
+	
+	private static final AtomicReferenceFieldUpdater<ConcurrentBitVectorIntSet,AtomicIntegerArray> BITS = 
+		AtomicReferenceFieldUpdater.newUpdater(ConcurrentBitVectorIntSet.class, AtomicIntegerArray.class, "bits");
+
+	/**
+	 * The bit vector.
+	 */
+	private volatile AtomicIntegerArray bits;
+	
+	/**
+	 * Create a new set with initialCapacity.
+	 * @param initialCapacity
+	 */
+	public ConcurrentBitVectorIntSet(final int initialCapacity) {
+		bits = new AtomicIntegerArray(initialCapacity <= SLOT_SIZE ? 1 : (initialCapacity + SLOT_SIZE - 1) / SLOT_SIZE);
+		if (BitVectorIntSet.COUNT_SLOTS) BitVectorIntSet.maxSlots.add(bits.length());
+	}
+	
+	/**
+	 * Create a new set of initial capacity SLOT_SIZE.
+	 */
+	public ConcurrentBitVectorIntSet() {
+		this(SLOT_SIZE);
+	}
+	
+	/**
+	 * Add an int to the set.
+	 */
+	public void add(final int member) {
+		final int slot = member / SLOT_SIZE;
+		final int bit = 1 << (member % SLOT_SIZE);
+		AtomicIntegerArray b = bits;
+		while (true) {
+			while (slot >= b.length()) {
+				// A competing grow may have published a vector still too short.
+				b = grow(b, slot + 1);
+			}
+			int old;
+			do {
+				old = b.get(slot);
+			} while ((old & bit) == 0 && !b.compareAndSet(slot, old, old | bit));
+			final AtomicIntegerArray current = bits;
+			if (current == b) {
+				return;
+			}
+			// Replaced while we were writing. Set it again in the new vector.
+			b = current;
+		}
+	}
+	
+	/**
+	 * Publish a copy of b with at least n slots, unless someone beat us to it.
+	 * @return the current bit vector, which may have fewer than n slots if
+	 * someone else grew it.
+	 */
+	private AtomicIntegerArray grow(final AtomicIntegerArray b, final int n) {
+		Assert.assertTrue(n < MAX_SLOTS);
+		final AtomicIntegerArray bigger = new AtomicIntegerArray(n);
+		for (int i = 0; i < b.length(); i++) {
+			bigger.set(i, b.get(i));
+		}
+		if (!BITS.compareAndSet(this, b, bigger)) {
+			return bits;
+		}
+		if (BitVectorIntSet.COUNT_SLOTS) BitVectorIntSet.maxSlots.add(n);
+		// Catch bits set in b after we copied it but before we published.
+		for (int i = 0; i < b.length(); i++) {
+			final int v = b.get(i);
+			int old;
+			do {
+				old = bigger.get(i);
+			} while ((old | v) != old && !bigger.compareAndSet(i, old, old | v));
+		}
+		return bigger;
+	}
+
+	/**
+	 * Check if the set contains member. Negative members are never
+	 * contained.
+	 */
+	public boolean contains(final int member) {
+		final int slot = member / SLOT_SIZE;
+		final AtomicIntegerArray b = bits;
+		if (member < 0 || slot >= b.length()) {
+			return false;
+		}
+		return (b.get(slot) & (1 << (member % SLOT_SIZE))) != 0;
+	}
+	
+	/**
+	 * Check if the set is empty. O(slots)
+	 */
+	public boolean isEmpty() {
+		final AtomicIntegerArray b = bits;
+		for (int i = 0; i < b.length(); i++) {
+			if (b.get(i) != 0) return false;
+		}
+		return true;
+	}
+	
+	public int size() {
+		final AtomicIntegerArray b = bits;
+	    int count = 0;
+		for (int i = 0; i < b.length(); i++) {
+	        count += Integer.bitCount(b.get(i));
+	    }
+	    return count;
+	}
+	
+	public String toString() {
+		final AtomicIntegerArray b = bits;
+		String s = "";
+		for (int i = 0; i < b.length() * SLOT_SIZE; i++) {
+			if ((b.get(i / SLOT_SIZE) & (1 << (i % SLOT_SIZE))) != 0) {
+				if (s.length() != 0) {
+					s += ", ";
+				}
+				s += i;
+			}
+		}
+		return "{" + s + "}";
+	}
+}
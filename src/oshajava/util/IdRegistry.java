@@ -0,0 +1,102 @@
+/*
+
+Copyright (c) 2010, Benjamin P. Wood and Adrian Sampson, University of Washington
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the University of Washington nor the names of its
+   contributors may be used to endorse or promote products derived from this
+   software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+*/
+
+
+package oshajava.util;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Map from small, densely allocated int ids to objects. get takes no locks
+ * unless the id is missing from the table it sees, in which case it checks
+ * again under the lock, so an id registered before get was called is always
+ * found. Entries stay until they are removed.
+ * 
+ * @author bpw
+ *
+ * @param <T>
+ */
+public class IdRegistry<T> {
+	
+	private volatile AtomicReferenceArray<T> table;
+	
+	public IdRegistry(final int initialCapacity) {
+		table = new AtomicReferenceArray<T>(initialCapacity);
+	}
+	
+	/**
+	 * Register t under id.
+	 */
+	public synchronized void put(final int id, final T t) {
+		AtomicReferenceArray<T> tab = table;
+		if (id >= tab.length()) {
+			int n = tab.length() * 2;
+			while (id >= n) n *= 2;
+			final AtomicReferenceArray<T> bigger = new AtomicReferenceArray<T>(n);
+			for (int i = 0; i < tab.length(); i++) {
+				bigger.set(i, tab.get(i));
+			}
+			table = tab = bigger;
+		}
+		tab.set(id, t);
+	}
+	
+	/**
+	 * Forget whatever is registered under id.
+	 */
+	public synchronized void remove(final int id) {
+		final AtomicReferenceArray<T> tab = table;
+		if (id >= 0 && id < tab.length()) {
+			tab.set(id, null);
+		}
+	}
+	
+	/**
+	 * Get the object registered under id, or null if there is none.
+	 */
+	public T get(final int id) {
+		final AtomicReferenceArray<T> tab = table;
+		if (id >= 0 && id < tab.length()) {
+			final T t = tab.get(id);
+			if (t != null) {
+				return t;
+			}
+		}
+		return getLocked(id);
+	}
+	
+	private synchronized T getLocked(final int id) {
+		final AtomicReferenceArray<T> tab = table;
+		return id >= 0 && id < tab.length() ? tab.get(id) : null;
+	}
+
+}
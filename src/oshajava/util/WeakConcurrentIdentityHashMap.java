@@ -70,11 +70,14 @@ OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
 
 package oshajava.util;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 
@@ -208,6 +211,17 @@ public class WeakConcurrentIdentityHashMap<K, V> implements ConcurrentMap<K,V> {
 	final Segment[] segments;
 	
 	final boolean useGC;
+	
+	/**
+	 * Queue of weak keys whose referents have been collected, or null if
+	 * dead entries are only dropped by gc(). See expunge().
+	 */
+	final ReferenceQueue<Object> queue;
+	
+	/**
+	 * Number of entries removed by expunge().
+	 */
+	private final AtomicLong expunged = new AtomicLong();
 
 	/* ---------------- Small Utilities -------------- */
 
@@ -251,8 +265,8 @@ public class WeakConcurrentIdentityHashMap<K, V> implements ConcurrentMap<K,V> {
 		volatile V value;
 		final HashEntry<K,V> next;
 
-		HashEntry(K key, int hash, HashEntry<K,V> next, V value) {
-			this.key = new WeakReference<K>(key);
+		HashEntry(K key, int hash, HashEntry<K,V> next, V value, ReferenceQueue<Object> queue) {
+			this.key = queue == null ? new WeakReference<K>(key) : new WeakKey<K>(key, hash, queue);
 			this.hash = hash;
 			this.next = next;
 			this.value = value;
@@ -267,6 +281,19 @@ public class WeakConcurrentIdentityHashMap<K, V> implements ConcurrentMap<K,V> {
 		}
 	}
 
+	/**
+	 * A weak key registered with the map's queue. Remembers its hash so its
+	 * entry can be found after the referent is gone.
+	 */
+	static final class WeakKey<K> extends WeakReference<K> {
+		final int hash;
+		
+		WeakKey(K key, int hash, ReferenceQueue<Object> queue) {
+			super(key, (ReferenceQueue)queue);
+			this.hash = hash;
+		}
+	}
+
 	/**
 	 * Segments are specialized versions of hash tables.  This
 	 * subclasses from ReentrantLock opportunistically, just to
@@ -348,10 +375,13 @@ public class WeakConcurrentIdentityHashMap<K, V> implements ConcurrentMap<K,V> {
 		final float loadFactor;
 		
 		final boolean useGC;
+		
+		final ReferenceQueue<Object> queue;
 
-		Segment(int initialCapacity, float lf, boolean useGC) {
+		Segment(int initialCapacity, float lf, boolean useGC, ReferenceQueue<Object> queue) {
 			loadFactor = lf;
 			this.useGC = useGC;
+			this.queue = queue;
 			setTable(new HashEntry[initialCapacity]);
 		}
 
@@ -438,7 +468,7 @@ public class WeakConcurrentIdentityHashMap<K, V> implements ConcurrentMap<K,V> {
 				else {
 					oldValue = null;
 					++modCount;
-					tab[index] = new HashEntry<K,V>(key, hash, first, value);
+					tab[index] = new HashEntry<K,V>(key, hash, first, value, queue);
 					count = c; // write-volatile
 				}
 				return oldValue;
@@ -564,6 +594,47 @@ public class WeakConcurrentIdentityHashMap<K, V> implements ConcurrentMap<K,V> {
 		}
 		
 		
+		// removes the entry for an expired weak key, if still present
+		boolean expunge(Reference<?> key, int hash) {
+			lock();
+			try {
+				HashEntry[] tab = table;
+				int index = hash & (tab.length - 1);
+				HashEntry<K,V> first = tab[index];
+				HashEntry<K,V> e = first;
+				while (e != null && e.key != key)
+					e = e.next;
+				if (e == null) {
+					// Already dropped by gc().
+					return false;
+				}
+				HashEntry<K,V> newFirst = e.next;
+				for (HashEntry<K,V> p = first; p != e; p = p.next)
+					newFirst = new HashEntry<K,V>(p.key, p.hash,  
+							newFirst, p.value);
+				tab[index] = newFirst;
+				++modCount;
+				count = count - 1; // write-volatile
+				return true;
+			} finally {
+				unlock();
+			}
+		}
+		
+		// counts entries whose weak keys have expired
+		int stale() {
+			int stale = 0;
+			HashEntry<K,V>[] tab = table;
+			for (int i = 0; i < tab.length ; i++) {
+				for (HashEntry<K,V> e = tab[i]; e != null; e = e.next) {
+					if (e.key.get() == null) {
+						stale++;
+					}
+				}
+			}
+			return stale;
+		}
+		
 		// removes expired weak keys
 		void gc() {
 			if (count != 0) { // read-volatile
@@ -616,10 +687,22 @@ public class WeakConcurrentIdentityHashMap<K, V> implements ConcurrentMap<K,V> {
 	 */
 	public WeakConcurrentIdentityHashMap(int initialCapacity,
 			float loadFactor, int concurrencyLevel, boolean useGC) {
+		this(initialCapacity, loadFactor, concurrencyLevel, useGC, false);
+	}
+
+	/**
+	 * Creates a new, empty map with the specified initial
+	 * capacity, load factor, and concurrency level.  If useQueue, the
+	 * weak keys are registered with a reference queue, and entries whose
+	 * keys have been collected can be removed with expunge().
+	 */
+	public WeakConcurrentIdentityHashMap(int initialCapacity,
+			float loadFactor, int concurrencyLevel, boolean useGC, boolean useQueue) {
 		if (!(loadFactor > 0) || initialCapacity < 0 || concurrencyLevel <= 0)
 			throw new IllegalArgumentException();
 
 		this.useGC = useGC;
+		this.queue = useQueue ? new ReferenceQueue<Object>() : null;
 		
 		if (concurrencyLevel > MAX_SEGMENTS)
 			concurrencyLevel = MAX_SEGMENTS;
@@ -646,7 +729,7 @@ public class WeakConcurrentIdentityHashMap<K, V> implements ConcurrentMap<K,V> {
 			cap <<= 1;
 
 		for (int i = 0; i < this.segments.length; ++i)
-			this.segments[i] = new Segment<K,V>(cap, loadFactor, useGC);
+			this.segments[i] = new Segment<K,V>(cap, loadFactor, useGC, queue);
 	}
 
 	/**
@@ -670,6 +753,67 @@ public class WeakConcurrentIdentityHashMap<K, V> implements ConcurrentMap<K,V> {
 		this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, DEFAULT_SEGMENTS, useGC);
 	}
 
+	/**
+	 * Creates a new, empty map with a default initial capacity,
+	 * load factor, and concurrencyLevel, optionally queueing expired keys
+	 * for expunge().
+	 */
+	public WeakConcurrentIdentityHashMap(boolean useGC, boolean useQueue) {
+		this(DEFAULT_INITIAL_CAPACITY, DEFAULT_LOAD_FACTOR, DEFAULT_SEGMENTS, useGC, useQueue);
+	}
+
+	/**
+	 * Removes the entries whose keys have been collected and queued since
+	 * the last call.  Locks one segment at a time, per entry removed.  Does
+	 * nothing unless the map was created with a queue.
+	 *
+	 * @return the number of entries removed
+	 */
+	public int expunge() {
+		if (queue == null) return 0;
+		int removed = 0;
+		Reference<?> ref;
+		while ((ref = queue.poll()) != null) {
+			final int hash = ((WeakKey<?>)ref).hash;
+			if (segmentFor(hash).expunge(ref, hash)) {
+				removed++;
+			}
+		}
+		if (removed > 0) expunged.addAndGet(removed);
+		return removed;
+	}
+
+	/**
+	 * Number of entries removed by expunge() so far.
+	 */
+	public long expungedCount() {
+		return expunged.get();
+	}
+
+	/**
+	 * Number of entries, live or stale.  Not atomic with respect to
+	 * concurrent updates.
+	 */
+	public int entryCount() {
+		int sum = 0;
+		for (Segment s : segments) {
+			sum += s.count;
+		}
+		return sum;
+	}
+
+	/**
+	 * Number of entries whose keys have been collected but that have not
+	 * been removed yet.  Scans the whole map without locking.
+	 */
+	public int staleCount() {
+		int sum = 0;
+		for (Segment s : segments) {
+			sum += s.stale();
+		}
+		return sum;
+	}
+
 
 
 //	// inherit Map javadoc
@@ -0,0 +1,245 @@
+/*
+
+Copyright (c) 2010, Benjamin P. Wood and Adrian Sampson, University of Washington
+All rights reserved.
+
+Redistribution and use in source and binary forms, with or without modification,
+are permitted provided that the following conditions are met:
+
+1. Redistributions of source code must retain the above copyright notice, this
+   list of conditions and the following disclaimer.
+
+2. Redistributions in binary form must reproduce the above copyright notice,
+   this list of conditions and the following disclaimer in the documentation
+   and/or other materials provided with the distribution.
+
+3. Neither the name of the University of Washington nor the names of its
+   contributors may be used to endorse or promote products derived from this
+   software without specific prior written permission.
+
+THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR
+ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+(INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON
+ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+(INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+
+*/
+
+package oshajava.util.cache;
+
+import java.util.concurrent.ConcurrentMap;
+
+import oshajava.util.count.Counter;
+
+/**
+ * A THREAD-LOCAL set-associative cache front-end for a shared ConcurrentMap,
+ * with a small fully-associative victim buffer. Keys are hashed by
+ * System.identityHashCode. Ways within a set are replaced in tree
+ * pseudo-LRU order. Lines evicted from a set go to the victim buffer
+ * (round robin), and a victim hit swaps the line back into its set.
+ * 
+ * Keys that conflict in a DirectMappedShadowCache (e.g. the rows of a
+ * matrix walked in step) can share a set here instead of evicting each
+ * other on every access.
+ * 
+ * @author bpw
+ *
+ * @param <K> Type of keys
+ * @param <V> Type of values
+ */
+public class SetAssociativeShadowCache<K,V> extends ShadowCache<K,V> {
+	
+	private static final boolean COUNT = DirectMappedShadowCache.COUNT;
+
+	/**
+	 * Ways per set, log2 ways, and mask for hashing to sets.
+	 */
+	protected final int ways, wayBits, setMask;
+	
+	/**
+	 * Most ways per set. (Each set's pseudo-LRU tree has ways-1 bits in an int.)
+	 */
+	public static final int MAX_WAYS = 8;
+	
+	/**
+	 * Cache lines, set by set.
+	 */
+	protected final Object[] keys;
+	protected final V[] values;
+	
+	/**
+	 * Tree pseudo-LRU bits of each set. Bit n-1 is node n of the tree
+	 * (root 1, children 2n and 2n+1) and points toward the less recently
+	 * used half.
+	 */
+	protected final int[] plru;
+	
+	/**
+	 * Victim buffer and its next replacement slot.
+	 */
+	protected final Object[] victimKeys;
+	protected final V[] victimValues;
+	private int nextVictim = 0;
+	
+	/**
+	 * Optional counters to count hits and misses.
+	 */
+	protected final Counter hits, misses;
+
+	/**
+	 * Create a new cache with size lines in sets of the given number of ways,
+	 * plus the given number of victim lines, as a front end to the given map.
+	 */
+	@SuppressWarnings("unchecked")
+	public SetAssociativeShadowCache(final ConcurrentMap<K,V> store, int size, int ways, int victims, Counter hits, Counter misses) {
+		super(store);
+		if ((size & (size - 1)) != 0) throw new IllegalArgumentException("The size parameter must be a power of 2. (" + size + " is not.)");
+		if ((ways & (ways - 1)) != 0 || ways < 1 || ways > MAX_WAYS) throw new IllegalArgumentException("The number of ways must be 1, 2, 4, or 8. (" + ways + " is not.)");
+		ways = Math.min(ways, size);
+		this.ways = ways;
+		this.wayBits = Integer.numberOfTrailingZeros(ways);
+		this.setMask = (size >>> wayBits) - 1;
+		this.keys = new Object[size];
+		this.values = (V[])new Object[size];
+		this.plru = new int[size >>> wayBits];
+		this.victimKeys = new Object[victims];
+		this.victimValues = (V[])new Object[victims];
+		this.hits = hits;
+		this.misses = misses;
+	}
+	
+	/**
+	 * Get the value for key. May displace others from the cache.
+	 * @param key
+	 * @return
+	 */
+	public V get(final K key) {
+		final int set = System.identityHashCode(key) & setMask;
+		final int base = set << wayBits;
+		for (int w = 0; w < ways; w++) {
+			if (keys[base + w] == key) {
+				touch(set, w);
+				if (COUNT && hits != null) hits.inc();
+				return values[base + w];
+			}
+		}
+		if (key == null) {
+			return null;
+		}
+		for (int v = 0; v < victimKeys.length; v++) {
+			if (victimKeys[v] == key) {
+				if (COUNT && hits != null) hits.inc();
+				final V val = victimValues[v];
+				victimKeys[v] = null;
+				victimValues[v] = null;
+				insert(set, key, val, v);
+				return val;
+			}
+		}
+		if (COUNT && misses != null) misses.inc();
+		final V val = store.get(key);
+		if (val != null) {
+			insert(set, key, val, -1);
+		}
+		return val;
+	}
+		
+	/**
+	 * Put the given key/value pair in the map if not there already. Assumed not in cache. May displace others from cache.
+	 * @param key
+	 * @param value
+	 */
+	public V putIfAbsent(final K key, final V value) {
+		if (key == null || value == null) {
+			throw new NullPointerException();
+		}
+		final int set = System.identityHashCode(key) & setMask;
+		final int base = set << wayBits;
+		for (int w = 0; w < ways; w++) {
+			if (keys[base + w] == key) {
+				touch(set, w);
+				return values[base + w];
+			}
+		}
+		final V oldval = store.putIfAbsent(key, value);
+		insert(set, key, oldval == null ? value : oldval, -1);
+		return oldval;
+	}
+	
+	/**
+	 * Put key in set, evicting the pseudo-LRU way (or an empty one) to the
+	 * victim buffer, in slot victim if it is not -1.
+	 */
+	private void insert(final int set, final Object key, final V value, final int victim) {
+		final int base = set << wayBits;
+		int w = 0;
+		while (w < ways && keys[base + w] != null) w++;
+		if (w == ways) {
+			w = lru(set);
+			if (victimKeys.length > 0) {
+				final int v;
+				if (victim >= 0) {
+					v = victim;
+				} else {
+					v = nextVictim;
+					nextVictim = v + 1 == victimKeys.length ? 0 : v + 1;
+				}
+				victimKeys[v] = keys[base + w];
+				victimValues[v] = values[base + w];
+			}
+		}
+		keys[base + w] = key;
+		values[base + w] = value;
+		touch(set, w);
+	}
+	
+	/**
+	 * Mark way w of set most recently used: point each node on its path away from it.
+	 */
+	private void touch(final int set, final int w) {
+		int bits = plru[set];
+		int node = 1;
+		for (int level = wayBits - 1; level >= 0; level--) {
+			final int dir = (w >>> level) & 1;
+			if (dir == 0) {
+				bits |= 1 << (node - 1);
+			} else {
+				bits &= ~(1 << (node - 1));
+			}
+			node = (node << 1) | dir;
+		}
+		plru[set] = bits;
+	}
+	
+	/**
+	 * The pseudo-LRU way of set.
+	 */
+	private int lru(final int set) {
+		final int bits = plru[set];
+		int node = 1;
+		for (int level = 0; level < wayBits; level++) {
+			node = (node << 1) | ((bits >>> (node - 1)) & 1);
+		}
+		return node - ways;
+	}
+	
+	/**
+	 * Clear the cache (probably to allow gc...)
+	 */
+	public void flush() {
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = null;
+			values[i] = null;
+		}
+		for (int i = 0; i < victimKeys.length; i++) {
+			victimKeys[i] = null;
+			victimValues[i] = null;
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package test.run.readmostly;
+
+import oshajava.annotation.*;
+
+/**
+ * Read-mostly benchmark: one thread writes a few shared fields, then 1 to 32
+ * reader threads read them in a tight loop.
+ * 
+ * The "allowed" field is written by a method whose writes the readers may
+ * read (memo hits after the first check). The "denied" field is written by a
+ * non-communicating method, so every cross-thread read of it is a memo miss.
+ * Run with -errorAction=NONE to time the denied case.
+ * 
+ * In the "rewrite" case each reader also stores what it has read into its
+ * own Tally on every iteration, so the shadows of those hot fields and
+ * elements are rewritten with an unchanged state.
+ * 
+ * Usage: ReadMostly [allowed|denied|rewrite] [iterations] [max threads]
+ */
+@Group(id="RM")
+public class ReadMostly {
+
+	int allowed;
+	int denied;
+
+	@Writer("RM")
+	void writeAllowed(int x) {
+		allowed = x;
+	}
+
+	@NonComm
+	void writeDenied(int x) {
+		denied = x;
+	}
+
+	@Reader("RM")
+	int readAllowed(int n) {
+		int sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += allowed;
+		}
+		return sum;
+	}
+
+	@Reader("RM")
+	int readRewriting(int n, Tally tally) {
+		final int[] recent = tally.recent;
+		int sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += allowed;
+			tally.last = sum;
+			recent[i & 7] = sum;
+		}
+		return sum;
+	}
+
+	@NonComm
+	int readDenied(int n) {
+		int sum = 0;
+		for (int i = 0; i < n; i++) {
+			sum += denied;
+		}
+		return sum;
+	}
+
+	@Inline
+	public static void main(String[] args) throws InterruptedException {
+		final String mode = args.length > 0 ? args[0] : "allowed";
+		final int n = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+		final int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			final ReadMostly shared = new ReadMostly();
+			shared.writeAllowed(1);
+			shared.writeDenied(1);
+			final ReaderThread[] readers = new ReaderThread[threads];
+			for (int i = 0; i < threads; i++) {
+				readers[i] = new ReaderThread(shared, mode, n);
+			}
+			final long start = System.nanoTime();
+			for (ReaderThread r : readers) {
+				r.start();
+			}
+			for (ReaderThread r : readers) {
+				r.join();
+			}
+			final long ms = (System.nanoTime() - start) / 1000000;
+			System.out.println(mode + " threads=" + threads + " reads=" + ((long)threads * n) + " ms=" + ms);
+		}
+	}
+}
+
+@Inline
+class ReaderThread extends Thread {
+	private final ReadMostly shared;
+	private final String mode;
+	private final int n;
+	private final Tally tally = new Tally();
+
+	ReaderThread(ReadMostly shared, String mode, int n) {
+		this.shared = shared;
+		this.mode = mode;
+		this.n = n;
+	}
+
+	public void run() {
+		if (mode.equals("denied")) {
+			shared.readDenied(n);
+		} else if (mode.equals("rewrite")) {
+			shared.readRewriting(n, tally);
+		} else {
+			shared.readAllowed(n);
+		}
+	}
+}
+
+@Inline
+class Tally {
+	int last;
+	final int[] recent;
+
+	@Writer("RM")
+	Tally() {
+		recent = new int[8];
+	}
+}